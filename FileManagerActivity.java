@@ -10,9 +10,22 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Color;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.FileObserver;
+import android.os.ParcelFileDescriptor;
+import android.os.StatFs;
 import android.provider.DocumentsContract;
 import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.system.StructStatVfs;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
@@ -33,22 +46,72 @@ import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowCompat;
 import androidx.core.view.WindowInsetsCompat;
 import androidx.core.view.WindowInsetsControllerCompat;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
 
 /**
  * <h2>FileManagerActivity</h2>
@@ -72,6 +135,14 @@ import java.util.concurrent.Executors;
  * user-picked SAF folder</li> 
  *   <li>Rename and delete files/folders in the app's documents directory</li> 
  *   <li>Multi-file selection support for imports</li> 
+ *   <li>Name clashes are resolved per job: skip, overwrite, keep both (with a
+ * numbered name) or skip only what is identical</li>
+ *   <li>Watched folders: picked source folders whose new and changed files can be
+ * imported again at any time, without copying what is already up to date</li>
+ *   <li>Re-exporting a folder syncs it: only new or changed files are transferred,
+ * optionally deleting files that were removed locally</li>
+ *   <li>Imports are written to a hidden staging folder and only appear in the
+ * documents directory, by atomic rename, once the whole import has succeeded</li>
  *   <li>No permissions required: all file access is performed via SAF or 
  * app-private storage</li>
  * </ul>
@@ -79,13 +150,16 @@ import java.util.concurrent.Executors;
  * <h2>Notes</h2>
  * <ul>
  *   <li>URIs returned by the Storage Access Framework (SAF)
- * are treated as transient in this implementation. This activity does not call
- * {@code takePersistableUriPermission(...)} or persist granted URI permissions
- * across restarts.</li>
- *   <li>Modifications to the device folder are strictly non-destructive by design:
- * exports use the Storage Access Framework, name collisions are detected and the
- * operation is stopped, and the activity does not delete or overwrite existing
- * files in external/device folders.</li>
+ * are treated as transient in this implementation. The only exception are the URIs of
+ * a running transfer: their permissions are persisted until the transfer finishes, so
+ * that a transfer interrupted by process death can be resumed on the next start, and
+ * the URIs of watched folders, whose read permission is kept until they are no longer
+ * watched.</li>
+ *   <li>Modifications to the device folder are non-destructive by default:
+ * exports use the Storage Access Framework and name collisions are detected. Existing
+ * files are only overwritten when the user picks a conflict policy that does so, and
+ * only deleted when syncing a folder with pruning: files that no longer exist in the
+ * documents directory are then deleted from the device folder.</li>
  * </ul>
  *
  * <h2>Usage</h2>
@@ -96,6 +170,15 @@ import java.util.concurrent.Executors;
  *   <li>All user actions are confirmed via dialogs</li>
  *   <li>Can be extended or customized as needed for your application's
  * workflow</li>
+ *   <li>Multi-file imports and folder transfers run in parallel; the number of concurrent
+ * transfers can be tuned with the {@link #EXTRA_TRANSFER_CONCURRENCY} and
+ * {@link #EXTRA_PROVIDER_CONCURRENCY} launch intent extras. Small files use all of them,
+ * large files are streamed on a few lanes only</li>
+ *   <li>Set {@link #EXTRA_VERIFY_TRANSFERS} to checksum every file while it is copied
+ * and compare it with what the destination actually stored</li>
+ *   <li>{@link #EXTRA_DURABILITY} picks when copied files are flushed to storage: by
+ * default all files of a job are synced together at its end, {@code STRICT} syncs every
+ * file on its own and {@code NONE} leaves it to the kernel</li>
  * </ul>
  *
  * <h2>Author</h2>
@@ -108,29 +191,126 @@ import java.util.concurrent.Executors;
  *   <li>LGPL - GNU Lesser General Public License</li>
  * </ul>
  */
-@SuppressLint({"NotifyDataSetChanged", "SetTextI18n"})
+@SuppressLint({"SetTextI18n"})
 public class FileManagerActivity extends AppCompatActivity {
+    public static final String EXTRA_TRANSFER_CONCURRENCY = "com.ngcomputing.fora.android.extra.TRANSFER_CONCURRENCY";
+    public static final String EXTRA_PROVIDER_CONCURRENCY = "com.ngcomputing.fora.android.extra.PROVIDER_CONCURRENCY";
+    public static final String EXTRA_VERIFY_TRANSFERS = "com.ngcomputing.fora.android.extra.VERIFY_TRANSFERS";
+    /** The name of a {@link Durability}. */
+    public static final String EXTRA_DURABILITY = "com.ngcomputing.fora.android.extra.DURABILITY";
+
+    private static final String TAG = "FileManagerActivity";
+    private static final int DEFAULT_TRANSFER_CONCURRENCY = 6;
+    // content providers serve requests from a small binder thread pool, don't monopolize it
+    private static final int DEFAULT_PROVIDER_CONCURRENCY = 4;
+    // directories whose children queries may be in flight ahead of the crawler
+    private static final int QUERY_PREFETCH = 4;
+    // files enumerated by the crawler but not yet picked up by a copy worker
+    private static final int PIPELINE_QUEUE_CAPACITY = 256;
     private static final int BUFFER_SIZE = 65536;
+    // smallest copy buffer, and the block size assumed if the file system doesn't report one
+    private static final int MIN_BUFFER_SIZE = 4096;
+    // for the buffered loop of large files, fewer read/write round trips per byte
+    private static final int LARGE_BUFFER_SIZE = 1024 * 1024;
+    // files from this size on are large: bandwidth-bound rather than dominated by per-file IPC
+    private static final long LARGE_FILE_THRESHOLD = 4L * 1024 * 1024;
+    // of the transfer concurrency, lanes that may stream large files at the same time
+    private static final int DEFAULT_LARGE_FILE_LANES = 2;
+    // buffers in flight between the reader and the writer of an overlapped copy
+    private static final int COPY_RING_SIZE = 3;
+    // all copy buffers, in use or kept for reuse, shared by all transfers
+    private static final long BUFFER_POOL_BUDGET = 8L * 1024 * 1024;
+    // smaller files are written in one or two extents anyway, they are spared the extra call
+    private static final long PREALLOCATE_THRESHOLD = 1024 * 1024;
+    // left free on top of a job's bytes, for journals, staging and everything else on the device
+    private static final long FREE_SPACE_RESERVE = 16L * 1024 * 1024;
+    // upper bound for a single transferTo() call, keeps cancellation responsive on multi-GB files
+    private static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+    // persisted URI grants are capped per app, don't spend them on huge selections
+    private static final int MAX_PERSISTED_GRANTS = 64;
+    private static final String JOURNAL_FILE_NAME = "transfer.journal";
+    private static final String CHECKSUMS_FILE_NAME = "transfer.checksums";
+    // one WatchState file per watched folder
+    private static final String WATCHED_DIR_NAME = "watched";
+    // next to the documents directory: publishing an import is a rename on the same filesystem,
+    // and no name the user gives an item can clash with it
+    private static final String STAGING_DIR_NAME = ".staging";
+    // the progress bar follows every frame, the text only changes this often to stay readable
+    private static final long PROGRESS_TEXT_INTERVAL_NANOS = 250_000_000L;
 
     private File appDocumentsDir;
+    private File stagingRoot;
+    private File watchedDir;
+    // tree URIs of the watched folders, their permissions outlive any transfer job
+    private final Set<String> watchedTrees = ConcurrentHashMap.newKeySet();
     private FileListAdapter adapter;
-    private final List<File> fileList = new ArrayList<>();
+    private DirectoryIndex documentsIndex;
     private File fileToExportOrDelete = null;
     private boolean isExportingFolder = false;
 
     private AlertDialog progressDialog;
+    private ProgressBar progressBar;
+    private TextView progressText;
+    private long progressTextNanos;
+    private final Choreographer.FrameCallback progressTicker = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (progressDialog == null || !progressDialog.isShowing()) return;
+            updateProgressViews(frameTimeNanos);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
     private volatile boolean cancelRequested = false;
+    private volatile boolean abortRequested = false;
+    private volatile TransferReport transferReport = new TransferReport();
+    private volatile TransferProgress transferProgress = new TransferProgress();
+    // journal of the running job, null if it could not be created
+    private volatile TransferJournal journal;
+    // names in the destination of the running export, null if there is none
+    private volatile DestinationIndex destinationIndex;
+    // bytes the running export still has to fit once it opens a destination file, -1 if admitted
+    private volatile long unadmittedBytes = -1;
+    // why the running job ran out of space, null if it didn't
+    private volatile String spaceShortage;
+    private boolean verifyTransfers;
+    private Durability durability = Durability.GROUP_COMMIT;
+    // exported documents of the running job that still have to be synced
+    private final Queue<Uri> unsyncedDocuments = new ConcurrentLinkedQueue<>();
+    private ChecksumStore checksums;
+    private final BufferPool bufferPool = new BufferPool(BUFFER_POOL_BUDGET);
+    // of the file system holding the app's documents, copy buffers are a multiple of it
+    private int blockSize = MIN_BUFFER_SIZE;
 
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private TransferScheduler transferScheduler;
+    // folder crawlers and their prefetched children queries
+    private final ExecutorService crawlExecutor = Executors.newCachedThreadPool();
+    // the reading side of overlapped copies, the transfer worker itself writes
+    private final ExecutorService readerExecutor = Executors.newCachedThreadPool();
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
 
     private ActivityResultLauncher<Intent> filePickerLauncher;
     private ActivityResultLauncher<Intent> folderPickerLauncher;
     private ActivityResultLauncher<Intent> deviceFolderPickerLauncher;
+    private ActivityResultLauncher<Intent> watchFolderPickerLauncher;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        final Intent launchIntent = getIntent();
+        transferScheduler = new TransferScheduler(launchIntent.getIntExtra(EXTRA_TRANSFER_CONCURRENCY, DEFAULT_TRANSFER_CONCURRENCY), launchIntent.getIntExtra(EXTRA_PROVIDER_CONCURRENCY, DEFAULT_PROVIDER_CONCURRENCY), DEFAULT_LARGE_FILE_LANES, LARGE_FILE_THRESHOLD);
+        verifyTransfers = launchIntent.getBooleanExtra(EXTRA_VERIFY_TRANSFERS, false);
+        final String durabilityName = launchIntent.getStringExtra(EXTRA_DURABILITY);
+        if (durabilityName != null) {
+            try {
+                durability = Durability.valueOf(durabilityName);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown durability " + durabilityName);
+            }
+        }
+        checksums = new ChecksumStore(new File(getFilesDir(), CHECKSUMS_FILE_NAME));
+
         final File externalFilesDir = getExternalFilesDir(null);
         if (externalFilesDir == null) {
             showErrorAndExit();
@@ -141,6 +321,9 @@ public class FileManagerActivity extends AppCompatActivity {
             showErrorAndExit();
             return;
         }
+        stagingRoot = new File(externalFilesDir, STAGING_DIR_NAME);
+        blockSize = fileSystemBlockSize(appDocumentsDir);
+        watchedDir = new File(getFilesDir(), WATCHED_DIR_NAME);
 
         filePickerLauncher = registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
             if (result.getResultCode() != Activity.RESULT_OK || result.getData() == null) return;
@@ -177,6 +360,14 @@ public class FileManagerActivity extends AppCompatActivity {
             }
         });
 
+        watchFolderPickerLauncher = registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
+            if (result.getResultCode() != Activity.RESULT_OK || result.getData() == null) return;
+            Uri treeUri = result.getData().getData();
+            if (treeUri != null) {
+                watchFolder(treeUri);
+            }
+        });
+
         Window window = getWindow();
 
         WindowCompat.setDecorFitsSystemWindows(window, false);
@@ -206,6 +397,13 @@ public class FileManagerActivity extends AppCompatActivity {
         btnCopyFolder.setLayoutParams(folderBtnParams);
         root.addView(btnCopyFolder);
 
+        Button btnWatchedFolders = new Button(this);
+        btnWatchedFolders.setText("Watched Folders");
+        LinearLayout.LayoutParams watchedBtnParams = new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+        watchedBtnParams.topMargin = dp(8);
+        btnWatchedFolders.setLayoutParams(watchedBtnParams);
+        root.addView(btnWatchedFolders);
+
         TextView label = new TextView(this);
         label.setText("App Documents:");
         label.setTextSize(16f);
@@ -224,15 +422,27 @@ public class FileManagerActivity extends AppCompatActivity {
 
         setContentView(root);
 
-        adapter = new FileListAdapter(fileList);
+        adapter = new FileListAdapter();
         recyclerView.setAdapter(adapter);
 
         btnCopyFile.setOnClickListener(v -> openFilePicker());
         btnCopyFolder.setOnClickListener(v -> openFolderPicker());
+        btnWatchedFolders.setOnClickListener(v -> showWatchedFoldersDialog());
 
         adapter.setOnItemClickListener(this::onFileOrFolderClicked);
 
-        refreshFileList();
+        documentsIndex = new DirectoryIndex(appDocumentsDir, entries -> runOnUiThread(() -> {
+            if (!isFinishing()) adapter.submitList(entries);
+        }));
+        documentsIndex.start();
+
+        executor.execute(() -> {
+            checksums.load();
+            for (WatchState state : WatchState.loadAll(watchedDir)) watchedTrees.add(state.treeUri);
+            final TransferJournal interrupted = TransferJournal.load(new File(getFilesDir(), JOURNAL_FILE_NAME));
+            dropStaleStaging(interrupted != null ? interrupted.job.staging : null);
+            if (interrupted != null) runOnUiThread(() -> showResumeDialog(interrupted));
+        });
     }
 
     @Override
@@ -241,37 +451,56 @@ public class FileManagerActivity extends AppCompatActivity {
         refreshFileList();
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // other apps may have changed the files while this one was in the background
+        recheckFileList();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         cancelRequested = true;
         executor.shutdownNow();
+        crawlExecutor.shutdownNow();
+        readerExecutor.shutdownNow();
+        if (documentsIndex != null) documentsIndex.stop();
+        if (transferScheduler != null) transferScheduler.shutdownNow();
+        bufferPool.clear();
         dismissProgressDialog();
     }
 
     private void openFilePicker() {
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
         intent.setType("*/*");
-        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
         intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         filePickerLauncher.launch(intent);
     }
 
     private void openFolderPicker() {
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
-        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
         folderPickerLauncher.launch(intent);
     }
 
+    private void openWatchFolderPicker() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
+        watchFolderPickerLauncher.launch(intent);
+    }
+
     private void openDeviceFolderPicker() {
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
-        intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION | Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION | Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
         deviceFolderPickerLauncher.launch(intent);
     }
 
-    private void onFileOrFolderClicked(File file) {
+    private void onFileOrFolderClicked(FileEntry entry) {
+        final File file = entry.file;
         fileToExportOrDelete = file;
-        isExportingFolder = file.isDirectory();
+        isExportingFolder = entry.isDirectory;
         String[] options = {"Copy", "Rename", "Delete"};
         new AlertDialog.Builder(this).setTitle(file.getName()).setItems(options, (dialog, which) -> {
             if (which == 0) {
@@ -316,7 +545,7 @@ public class FileManagerActivity extends AppCompatActivity {
                     } else {
                         showResultDialog("Rename", "Rename failed!");
                     }
-                    refreshFileList();
+                    recheckFileList();
                 }).setNegativeButton("Cancel", null).show();
             } else if (which == 2) {
                 new AlertDialog.Builder(this).setTitle("Delete").setMessage("Are you sure you want to delete \"" + file.getName() + "\"?").setPositiveButton("Delete", (dialog1, which1) -> {
@@ -326,51 +555,105 @@ public class FileManagerActivity extends AppCompatActivity {
                     } else {
                         showResultDialog("Delete", "Delete failed!");
                     }
-                    refreshFileList();
+                    recheckFileList();
                 }).setNegativeButton("Cancel", null).show();
             }
         }).show();
     }
 
     private void startCopyFileWithProgress(List<Uri> fileUris) {
+        startCopyFileWithProgress(fileUris, null, ConflictPolicy.STOP);
+    }
+
+    private void startCopyFileWithProgress(List<Uri> fileUris, TransferJournal resumed, ConflictPolicy policy) {
         showProgressDialog("Copying file(s)...");
         executor.execute(() -> {
-            for (Uri fileUri : fileUris) {
-                final String fileName = queryFileName(fileUri);
-                final File destFile = new File(appDocumentsDir, fileName);
-                if (destFile.exists()) {
-                    dismissProgressDialog(() -> showFileExistsError(fileName));
-                    return;
+            final MetadataResolver metadata = new MetadataResolver(getContentResolver());
+            // the picked documents that are transferred, and where to
+            final List<Uri> selected = new ArrayList<>();
+            final List<File> destFiles = new ArrayList<>();
+            // the names of the picked documents, and every name written to, generated ones included
+            final Set<String> names = new HashSet<>();
+            final Set<String> destNames = new HashSet<>();
+            final List<String> clashes = new ArrayList<>();
+            long totalBytes = 0;
+            for (int i = 0; i < fileUris.size(); i++) {
+                final Uri fileUri = fileUris.get(i);
+                final DocumentMetadata meta = metadata.resolve(fileUri);
+                if (resumed != null) {
+                    // the clashes of an interrupted job have been resolved when it started
+                    selected.add(fileUri);
+                    destFiles.add(new File(resumed.job.destinations.get(i)));
+                    totalBytes += Math.max(0, meta.size);
+                    continue;
+                }
+                final String fileName = meta.displayName;
+                File destFile = new File(appDocumentsDir, fileName);
+                // two picked documents with the same name would be written concurrently into one file,
+                // the later one clashes with the earlier like with an existing file
+                final boolean duplicate = !names.add(fileName);
+                // a document really named like a KEEP_BOTH copy made for an earlier one is renamed as well
+                if (duplicate || destFile.exists() || destNames.contains(fileName)) {
+                    clashes.add(fileName);
+                    if (policy == ConflictPolicy.KEEP_BOTH) {
+                        destFile = uniqueFile(appDocumentsDir, fileName, false, destNames);
+                    } else if (duplicate || destFile.isDirectory() || policy.keepsExisting(isCopyCurrent(destFile.length(), destFile.lastModified(), meta.size, meta.lastModified))) {
+                        // a file never replaces a folder, nor another picked file
+                        if (policy != ConflictPolicy.STOP) transferReport.skipped(fileName);
+                        continue;
+                    }
                 }
+                destNames.add(destFile.getName());
+                selected.add(fileUri);
+                destFiles.add(destFile);
+                totalBytes += Math.max(0, meta.size);
+            }
+            if (policy == ConflictPolicy.STOP && !clashes.isEmpty()) {
+                dismissProgressDialog(() -> showConflictDialog(clashes, chosen -> startCopyFileWithProgress(fileUris, null, chosen)));
+                return;
             }
+            transferProgress.setTotal(totalBytes, selected.size());
+            // a resumed job was admitted when it started, part of it is written already
+            if (resumed == null && rejectIfNoSpace(totalBytes, availableBytes(appDocumentsDir))) return;
 
-            final boolean[] ok = {true};
-            for (Uri fileUri : fileUris) {
-                if (!ok[0] || cancelRequested) break;
-                final String fileName = queryFileName(fileUri);
-                final File destFile = new File(appDocumentsDir, fileName);
-                ok[0] = copyFile(fileUri, destFile);
+            final File staging = openStaging(resumed);
+            if (staging == null) {
+                dismissProgressDialog(() -> showResultDialog("Error", "Failed to create folder."));
+                return;
+            }
+            final List<String> sources = new ArrayList<>();
+            final List<String> destinations = new ArrayList<>();
+            final List<File> stagedFiles = new ArrayList<>();
+            for (int i = 0; i < selected.size(); i++) {
+                sources.add(selected.get(i).toString());
+                destinations.add(destFiles.get(i).getPath());
+                stagedFiles.add(new File(staging, destFiles.get(i).getName()));
             }
+            openJournal(resumed, new TransferJournal.Job(TransferJournal.IMPORT_FILES, sources, destinations, staging.getPath(), null, policy, sources.size() <= MAX_PERSISTED_GRANTS ? sources : new ArrayList<>(), Intent.FLAG_GRANT_READ_URI_PERMISSION));
 
-            if (!ok[0] || cancelRequested) {
-                for (Uri fileUri : fileUris) {
-                    final String fileName = queryFileName(fileUri);
-                    final File destFile = new File(appDocumentsDir, fileName);
-                    if (destFile.exists()) {
-                        deleteRecursively(destFile);
-                    }
-                }
+            final List<TransferScheduler.Task> tasks = new ArrayList<>();
+            for (int i = 0; i < selected.size(); i++) {
+                final Uri fileUri = selected.get(i);
+                final File stagedFile = stagedFiles.get(i);
+                tasks.add(transferTask(fileUri, metadata.resolve(fileUri).size, () -> copyFile(fileUri, stagedFile)));
             }
+            final boolean copied = runTransfers(tasks);
+            final boolean published = copied && !cancelRequested && syncStaged(staging) && publishStaged(staging, stagedFiles, destFiles, policy.replacesExisting());
+            final boolean ok = published && syncDirectories(Collections.singleton(appDocumentsDir));
+
+            // after publishing the staging folder is empty, otherwise this is the rollback
+            final TransferJournal failed = endJournaledJob(!published, staging);
 
             dismissProgressDialog(() -> {
                 refreshFileList();
                 if (cancelRequested) {
                     showResultDialog("Copy File(s)", "The copy operation was canceled.");
                 } else {
-                    if (ok[0]) {
-                        showResultDialog("Copy File(s)", "File(s) copied successfully!");
+                    if (ok) {
+                        final int skipped = transferReport.skippedCount();
+                        showResultDialog("Copy File(s)", "File(s) copied successfully!" + (skipped > 0 ? " " + skipped + " existing file(s) skipped." : ""));
                     } else {
-                        showResultDialog("Copy File(s)", "File(s) copy failed!");
+                        showFailedDialog("Copy File(s)", "File(s) copy failed!", failed);
                     }
                 }
             });
@@ -378,28 +661,62 @@ public class FileManagerActivity extends AppCompatActivity {
     }
 
     private void startCopyFolderWithProgress(Uri treeUri) {
+        startCopyFolderWithProgress(treeUri, null, ConflictPolicy.STOP);
+    }
+
+    private void startCopyFolderWithProgress(Uri treeUri, TransferJournal resumed, ConflictPolicy policy) {
         showProgressDialog("Copying folder...");
         executor.execute(() -> {
-            String folderName = queryDisplayNameFromTreeUri(treeUri);
-            if (folderName == null) folderName = "ImportedFolder";
-            final File destFolder = new File(appDocumentsDir, folderName);
-
-            if (destFolder.exists()) {
-                final String name = folderName;
-                dismissProgressDialog(() -> showFileExistsError(name));
-                return;
+            File destFolder;
+            if (resumed != null) {
+                destFolder = new File(resumed.job.destinations.get(0));
+            } else {
+                String folderName = queryDisplayNameFromTreeUri(treeUri);
+                if (folderName == null) folderName = "ImportedFolder";
+                destFolder = new File(appDocumentsDir, folderName);
+
+                if (destFolder.exists()) {
+                    final String name = folderName;
+                    if (policy == ConflictPolicy.STOP) {
+                        dismissProgressDialog(() -> showConflictDialog(Collections.singletonList(name), chosen -> startCopyFolderWithProgress(treeUri, null, chosen)));
+                        return;
+                    }
+                    if (policy == ConflictPolicy.KEEP_BOTH) {
+                        destFolder = uniqueFile(appDocumentsDir, folderName, true, Collections.emptySet());
+                    } else if (!destFolder.isDirectory()) {
+                        dismissProgressDialog(() -> showFileExistsError(name));
+                        return;
+                    }
+                }
             }
+            // the other policies merge into the existing folder, resolving clashes file by file
+            final File mergeFolder = policy != ConflictPolicy.STOP && policy != ConflictPolicy.KEEP_BOTH && destFolder.isDirectory() ? destFolder : null;
 
-            if (!destFolder.mkdirs()) {
+            final File staging = openStaging(resumed);
+            final File stagedFolder = staging != null ? new File(staging, destFolder.getName()) : null;
+            if (stagedFolder == null || (!stagedFolder.isDirectory() && !stagedFolder.mkdirs())) {
+                if (staging != null) dropStaging(staging);
                 dismissProgressDialog(() -> showResultDialog("Error", "Failed to create folder."));
                 return;
             }
 
-            final boolean ok = copyFolder(treeUri, DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri)), destFolder);
-
-            if (!ok || cancelRequested) {
-                deleteRecursively(destFolder);
+            final Uri rootUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+            // a resumed job was admitted when it started, part of it is written already
+            final long available = resumed == null ? availableBytes(appDocumentsDir) : -1;
+            final List<String> sources = Collections.singletonList(treeUri.toString());
+            openJournal(resumed, new TransferJournal.Job(TransferJournal.IMPORT_FOLDER, sources, Collections.singletonList(destFolder.getPath()), staging.getPath(), null, policy, sources, Intent.FLAG_GRANT_READ_URI_PERMISSION));
+
+            final boolean copied = copyFolder(treeUri, rootUri, stagedFolder, mergeFolder, policy, available);
+            // a merge adds entries to every folder of the existing copy
+            final Set<File> publishedDirs = new HashSet<>();
+            publishedDirs.add(appDocumentsDir);
+            if (copied && mergeFolder != null) {
+                for (File dir : listTree(stagedFolder, false)) publishedDirs.add(publishedFile(dir));
             }
+            final boolean published = copied && !cancelRequested && syncStaged(staging) && (mergeFolder != null ? mergeStaged(staging, stagedFolder, mergeFolder) : publishStaged(staging, Collections.singletonList(stagedFolder), Collections.singletonList(destFolder), false));
+            final boolean ok = published && syncDirectories(publishedDirs);
+
+            final TransferJournal failed = endJournaledJob(!published, staging);
 
             dismissProgressDialog(() -> {
                 refreshFileList();
@@ -407,310 +724,3248 @@ public class FileManagerActivity extends AppCompatActivity {
                     showResultDialog("Copy Folder", "The copy operation was canceled.");
                 } else {
                     if (ok) {
-                        showResultDialog("Copy Folder", "Folder copied successfully!");
+                        final int skipped = transferReport.skippedCount();
+                        showResultDialog("Copy Folder", "Folder copied successfully!" + (skipped > 0 ? " " + skipped + " existing file(s) skipped." : ""));
                     } else {
-                        showResultDialog("Copy Folder", "Folder copy failed!");
+                        showFailedDialog("Copy Folder", failedMessage("Folder copy failed!"), failed);
                     }
                 }
             });
         });
     }
 
-    private boolean copyFolder(Uri treeUri, Uri documentUri, File destDir) {
-        try {
-            final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, DocumentsContract.getDocumentId(documentUri));
-            try (Cursor cursor = getContentResolver().query(childrenUri, new String[]{DocumentsContract.Document.COLUMN_DOCUMENT_ID, DocumentsContract.Document.COLUMN_DISPLAY_NAME, DocumentsContract.Document.COLUMN_MIME_TYPE}, null, null, null)) {
-                while (cursor != null && cursor.moveToNext() && !cancelRequested) {
-                    final String childDocId = cursor.getString(0);
-                    final String name = cursor.getString(1);
-                    final String mimeType = cursor.getString(2);
-                    final Uri childUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, childDocId);
-                    if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)) {
-                        final File subDir = new File(destDir, name);
-                        if (subDir.exists() || !subDir.mkdirs()) {
-                            return false;
-                        }
-                        final boolean ok = copyFolder(treeUri, childUri, subDir);
-                        if (!ok || cancelRequested) return false;
-                    } else {
-                        final File destFile = new File(destDir, name);
-                        if (!copyFile(childUri, destFile)) {
-                            return false;
-                        }
-                    }
+    private void showWatchedFoldersDialog() {
+        executor.execute(() -> {
+            final List<WatchState> states = WatchState.loadAll(watchedDir);
+            runOnUiThread(() -> {
+                if (isFinishing()) return;
+                final String[] names = new String[states.size()];
+                for (int i = 0; i < names.length; i++) names[i] = states.get(i).name;
+                final AlertDialog.Builder builder = new AlertDialog.Builder(this).setTitle("Watched Folders").setNeutralButton("Add", (dialog, which) -> openWatchFolderPicker()).setNegativeButton("Close", null);
+                if (states.isEmpty()) {
+                    builder.setMessage("No folders are watched. Add a folder to import it now and import its new and changed files later on.");
+                } else {
+                    builder.setItems(names, (dialog, which) -> confirmUnwatchFolder(states.get(which))).setPositiveButton("Import Changes", (dialog, which) -> startSyncWatchedFoldersWithProgress());
                 }
-            }
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+                builder.show();
+            });
+        });
     }
 
-    private boolean copyFile(Uri fileUri, File destFile) {
-        try (InputStream is = getContentResolver().openInputStream(fileUri)) {
-            if (is == null) return false;
-            try (OutputStream os = new FileOutputStream(destFile)) {
-                final byte[] buffer = new byte[BUFFER_SIZE];
-                int len;
-                while ((len = is.read(buffer)) > 0) {
-                    if (cancelRequested) return false;
-                    os.write(buffer, 0, len);
-                }
-                os.flush();
+    private void confirmUnwatchFolder(WatchState state) {
+        new AlertDialog.Builder(this).setTitle("Stop watching").setMessage("Stop watching \"" + state.name + "\"? Files already imported are kept.").setPositiveButton("Stop watching", (dialog, which) -> executor.execute(() -> unwatchFolder(state))).setNegativeButton("Cancel", null).show();
+    }
+
+    private void watchFolder(Uri treeUri) {
+        executor.execute(() -> {
+            final String uri = treeUri.toString();
+            if (watchedTrees.contains(uri)) {
+                runOnUiThread(this::startSyncWatchedFoldersWithProgress);
+                return;
             }
-        } catch (Exception e) {
-            return false;
+            final String name = queryDisplayNameFromTreeUri(treeUri);
+            if (name == null) {
+                showResultDialog("Error", "Failed to read the folder.");
+                return;
+            }
+            // watching imports into a folder of its own, never into one that is already there
+            if (new File(appDocumentsDir, name).exists()) {
+                showFileExistsError(name);
+                return;
+            }
+            try {
+                getContentResolver().takePersistableUriPermission(treeUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                WatchState.create(watchedDir, uri, name);
+            } catch (SecurityException | IOException e) {
+                Log.w(TAG, "Failed to watch " + uri, e);
+                showResultDialog("Error", "The folder can't be watched.");
+                return;
+            }
+            watchedTrees.add(uri);
+            runOnUiThread(this::startSyncWatchedFoldersWithProgress);
+        });
+    }
+
+    private void unwatchFolder(WatchState state) {
+        state.delete();
+        watchedTrees.remove(state.treeUri);
+        try {
+            getContentResolver().releasePersistableUriPermission(Uri.parse(state.treeUri), Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            //
         }
-        return true;
     }
 
-    private void startCopyFileToDeviceFolderWithProgress(File file, Uri treeUri) {
-        showProgressDialog("Exporting file...");
+    /**
+     * Imports what changed in the watched folders since their last scan. Every folder is
+     * traversed once, comparing the size and modification time of each file with its state
+     * file; only new and changed files are copied. They are copied to the staging folder
+     * first and, once all copies are done and synced, renamed over their previous versions.
+     * Files removed from a watched folder are kept.
+     */
+    private void startSyncWatchedFoldersWithProgress() {
+        showProgressDialog("Importing changes...");
         executor.execute(() -> {
-            final String fileName = file.getName();
-            final boolean exists = checkNameExistsInDeviceFolder(fileName, treeUri);
-            if (exists) {
-                dismissProgressDialog(() -> showFileExistsError(fileName));
+            final File staging = openStaging(null);
+            if (staging == null) {
+                dismissProgressDialog(() -> showResultDialog("Error", "Failed to create folder."));
                 return;
             }
+            final List<WatchState> states = WatchState.loadAll(watchedDir);
+            final List<Map<String, String>> scanned = new ArrayList<>();
+            final List<TransferScheduler.Task> tasks = new ArrayList<>();
+            final Queue<WatchedCopy> copies = new ConcurrentLinkedQueue<>();
+            // local folders that are missing, created only once the copies are published
+            final List<File> folders = new ArrayList<>();
+            final ScanResult changes = new ScanResult();
+            // files that could not be copied, they are retried by the next import
+            final AtomicInteger uncopied = new AtomicInteger();
+            int unreadable = 0;
+            for (WatchState state : states) {
+                final Map<String, String> entries = planWatchedFolder(state, staging, tasks, copies, folders, changes, uncopied);
+                if (entries == null) unreadable++;
+                scanned.add(entries);
+            }
+            transferProgress.setTotal(changes.bytes, changes.files);
+            if (rejectIfNoSpace(changes.bytes, availableBytes(appDocumentsDir))) {
+                dropStaging(staging);
+                return;
+            }
+            final boolean copied = runTransfers(tasks);
+            // the files that were copied are published even if others failed or the import was canceled
+            boolean published = syncStaged(staging);
+            final Set<File> publishedDirs = new HashSet<>();
+            // parents first, in walk order; a canceled import leaves no empty folders behind
+            for (File folder : published && !cancelRequested ? folders : Collections.<File>emptyList()) {
+                if (!folder.isDirectory() && !folder.mkdirs()) {
+                    published = false;
+                    continue;
+                }
+                publishedDirs.add(folder.getParentFile());
+            }
+            for (WatchedCopy copy : published ? copies : Collections.<WatchedCopy>emptyList()) {
+                final File parent = copy.destination.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    published = false;
+                    continue;
+                }
+                // rename(2) replaces the previous version atomically
+                if (!copy.staged.renameTo(copy.destination)) {
+                    published = false;
+                    continue;
+                }
+                publishedDirs.add(copy.destination.getParentFile());
+                if (copy.stamp != null) copy.state.put(copy.path, copy.stamp);
+            }
+            final boolean ok = copied && published && syncDirectories(publishedDirs);
+
+            for (int i = 0; i < states.size(); i++) {
+                if (scanned.get(i) == null) continue;
+                try {
+                    states.get(i).save(scanned.get(i));
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to save the state of " + states.get(i).name, e);
+                }
+            }
+            dropStaging(staging);
 
-            final boolean ok = copyFileIntoDeviceFolder(file, DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri)));
-
+            final int failed = unreadable;
             dismissProgressDialog(() -> {
                 if (cancelRequested) {
-                    showResultDialog("Export File", "The export operation was canceled.");
+                    showResultDialog("Watched Folders", "The import was canceled.");
+                } else if (!ok) {
+                    showResultDialog("Watched Folders", "Import failed!");
                 } else {
-                    if (ok) {
-                        showResultDialog("Export File", "File exported successfully!");
-                    } else {
-                        showResultDialog("Export File", "Export failed!");
-                    }
+                    String message = (changes.files - uncopied.get()) + " new or changed file(s) imported.";
+                    if (uncopied.get() > 0) message += " " + uncopied.get() + " file(s) could not be copied; they are tried again by the next import.";
+                    if (failed > 0) message += " " + failed + " folder(s) could not be read; they may have been removed or their permission revoked.";
+                    showResultDialog("Watched Folders", message);
                 }
             });
         });
     }
 
-    private void startCopyFolderToDeviceFolderWithProgress(File folder, Uri treeUri) {
-        showProgressDialog("Exporting folder...");
-        executor.execute(() -> {
-            final String folderName = folder.getName();
-            final boolean exists = checkNameExistsInDeviceFolder(folderName, treeUri);
-            if (exists) {
-                dismissProgressDialog(() -> showFileExistsError(folderName));
-                return;
-            }
+    // a changed file of a watched folder, copied to the staging folder and waiting to be renamed
+    static final class WatchedCopy {
+        final File staged;
+        final File destination;
+        // the state the stamp is recorded in once the file is renamed
+        final Map<String, String> state;
+        final String path;
+        final String stamp;
+
+        WatchedCopy(File staged, File destination, Map<String, String> state, String path, String stamp) {
+            this.staged = staged;
+            this.destination = destination;
+            this.state = state;
+            this.path = path;
+            this.stamp = stamp;
+        }
+    }
 
-            final boolean ok = copyFolderIntoDeviceFolder(folder, DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri)));
+    /**
+     * Traverses one watched folder and adds a task for every new or changed file. Nothing is
+     * created in the local folder: the files are staged, and the local folders that are missing
+     * are added to {@code folders} for the publish.
+     *
+     * @param uncopied counts the files whose task failed; one file that can't be read does not
+     * stop the others
+     * @return the state to save once the tasks have run, filled in by the tasks that succeed;
+     * null if the folder could not be traversed
+     */
+    private Map<String, String> planWatchedFolder(WatchState state, File staging, List<TransferScheduler.Task> tasks, Queue<WatchedCopy> copies, List<File> folders, ScanResult changes, AtomicInteger uncopied) {
+        final Uri treeUri = Uri.parse(state.treeUri);
+        final Map<String, String> previous = state.load();
+        final Map<String, String> current = new ConcurrentHashMap<>();
+        final File localRoot = new File(appDocumentsDir, state.name);
+        if (localRoot.exists() && !localRoot.isDirectory()) return null;
+        // the folders of a complete walk only, a partial one must not leave empty folders behind
+        final List<File> missing = new ArrayList<>();
+        if (!localRoot.isDirectory()) missing.add(localRoot);
+        final String rootPrefix = localRoot.getPath() + File.separator;
+        final DocumentTreeWalker walker = new DocumentTreeWalker(getContentResolver(), treeUri, crawlExecutor, QUERY_PREFETCH, this::isStopRequested);
+        try {
+            final boolean walked = walker.walk(DocumentsContract.getTreeDocumentId(treeUri), localRoot, new DocumentTreeWalker.Visitor() {
+                @Override
+                public File onDirectory(DocumentTreeWalker.DocumentRecord dir, File parentDir) {
+                    final File subDir = new File(parentDir, dir.displayName);
+                    if (subDir.exists() && !subDir.isDirectory()) return null;
+                    if (!subDir.isDirectory()) missing.add(subDir);
+                    return subDir;
+                }
 
-            dismissProgressDialog(() -> {
-                if (cancelRequested) {
-                    showResultDialog("Export Folder", "The export operation was canceled.");
-                } else {
-                    if (ok) {
-                        showResultDialog("Export Folder", "Folder exported successfully!");
-                    } else {
-                        showResultDialog("Export Folder", "Export failed!");
+                @Override
+                public boolean onFile(DocumentTreeWalker.DocumentRecord file, File parentDir) {
+                    final File destFile = new File(parentDir, file.displayName);
+                    final String path = destFile.getPath().substring(rootPrefix.length());
+                    final String stamp = WatchState.stamp(file);
+                    if (stamp != null && stamp.equals(previous.get(path)) && destFile.isFile()) {
+                        current.put(path, stamp);
+                        return true;
                     }
+                    final Uri fileUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, file.documentId);
+                    // staged under its own relative path, which is what publishedFile() maps it by
+                    final File stagedFile = new File(new File(staging, state.name), path);
+                    changes.add(file.size);
+                    tasks.add(independentTransferTask(fileUri, file.size, uncopied, () -> {
+                        final File stagedDir = stagedFile.getParentFile();
+                        // sibling tasks may create it at the same time
+                        if (!stagedDir.mkdirs() && !stagedDir.isDirectory()) return false;
+                        if (!copyFile(fileUri, stagedFile)) return false;
+                        copies.add(new WatchedCopy(stagedFile, destFile, current, path, stamp));
+                        return true;
+                    }));
+                    return true;
                 }
             });
-        });
+            if (!walked) return null;
+            folders.addAll(missing);
+            return current;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
     }
 
-    private boolean copyFolderIntoDeviceFolder(File folder, Uri documentUri) {
-        if (cancelRequested) return false;
-        final String folderName = folder.getName();
+    /**
+     * Imports a document tree as a two-stage pipeline: a crawler enumerates the tree
+     * breadth-first, creates the local directories and feeds the files into a bounded queue,
+     * while the transfer scheduler's workers copy them, hiding query latency behind disk I/O.
+     * The tree is listed only this once: the progress total grows as the crawler finds files,
+     * and the free space is checked against the bytes found so far.
+     *
+     * @param mergeDir the existing folder the import is merged into, or null; files that
+     * {@code policy} keeps there are not copied
+     * @param available the free bytes the import has to fit into, -1 if unknown or admitted already
+     */
+    private boolean copyFolder(Uri treeUri, Uri documentUri, File destDir, File mergeDir, ConflictPolicy policy, long available) {
         try {
-            final Uri folderUri = DocumentsContract.createDocument(getContentResolver(), documentUri, DocumentsContract.Document.MIME_TYPE_DIR, folderName);
-            if (folderUri == null) {
-                return false;
-            }
-            final File[] children = folder.listFiles();
-            if (children == null) return true;
-            for (File child : children) {
-                if (cancelRequested) break;
-                if (child.isDirectory()) {
-                    final boolean ok = copyFolderIntoDeviceFolder(child, folderUri);
-                    if (!ok || cancelRequested) return false;
-                } else {
-                    if (!copyFileIntoDeviceFolder(child, folderUri)) {
-                        return false;
-                    }
+            final BlockingQueue<TransferScheduler.Task> queue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+            final DocumentTreeWalker walker = new DocumentTreeWalker(getContentResolver(), treeUri, crawlExecutor, QUERY_PREFETCH, this::isStopRequested);
+            final String rootDocumentId = DocumentsContract.getDocumentId(documentUri);
+            final Future<Boolean> crawler = crawlExecutor.submit(() -> {
+                boolean crawled = false;
+                try {
+                    crawled = walker.walk(rootDocumentId, destDir, new DocumentTreeWalker.Visitor() {
+                        // staged directories left out of the merge, with everything below them
+                        private final Set<File> skippedDirs = new HashSet<>();
+                        // bytes of the files queued so far
+                        private long queuedBytes;
+
+                        @Override
+                        public File onDirectory(DocumentTreeWalker.DocumentRecord dir, File parentDir) {
+                            final File subDir = new File(parentDir, dir.displayName);
+                            if (skippedDirs.contains(parentDir) || isTypeClash(dir, parentDir)) {
+                                skippedDirs.add(subDir);
+                                return subDir;
+                            }
+                            if (isResuming() && subDir.isDirectory()) {
+                                return subDir;
+                            }
+                            if (subDir.exists() || !subDir.mkdirs()) {
+                                return null;
+                            }
+                            return subDir;
+                        }
+
+                        @Override
+                        public boolean onFile(DocumentTreeWalker.DocumentRecord file, File parentDir) {
+                            transferProgress.addTotal(file.size, 1);
+                            if (skippedDirs.contains(parentDir) || isTypeClash(file, parentDir) || isKeptInMerge(file, parentDir)) {
+                                transferProgress.addBytes(Math.max(0, file.size));
+                                transferProgress.fileCompleted();
+                                return true;
+                            }
+                            queuedBytes += Math.max(0, file.size);
+                            if (available >= 0 && queuedBytes + FREE_SPACE_RESERVE > available) {
+                                spaceShortage = spaceShortageMessage(queuedBytes, available);
+                                return false;
+                            }
+                            final Uri fileUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, file.documentId);
+                            final File destFile = new File(parentDir, file.displayName);
+                            return offerUntilStopped(queue, transferTask(fileUri, file.size, () -> copyFile(fileUri, destFile)));
+                        }
+
+                        // a file never replaces a folder, nor a folder a file
+                        private boolean isTypeClash(DocumentTreeWalker.DocumentRecord document, File parentDir) {
+                            final File existing = mergedFile(document, parentDir);
+                            if (existing == null || !existing.exists() || existing.isDirectory() == document.isDirectory()) return false;
+                            transferReport.skipped(existing.getName());
+                            return true;
+                        }
+
+                        private boolean isKeptInMerge(DocumentTreeWalker.DocumentRecord file, File parentDir) {
+                            final File existing = mergedFile(file, parentDir);
+                            if (existing == null || !existing.isFile() || !policy.keepsExisting(isCopyCurrent(existing.length(), existing.lastModified(), file.size, file.lastModified))) return false;
+                            transferReport.skipped(existing.getName());
+                            return true;
+                        }
+
+                        // the counterpart of a staged document in the folder merged into, null if there is none
+                        private File mergedFile(DocumentTreeWalker.DocumentRecord document, File parentDir) {
+                            return mergeDir != null ? new File(mergeDir.getPath() + parentDir.getPath().substring(destDir.getPath().length()), document.displayName) : null;
+                        }
+                    });
+                    return crawled;
+                } finally {
+                    if (!crawled) abortRequested = true;
+                    offerUntilStopped(queue, TransferScheduler.END_OF_TASKS);
                 }
+            });
+
+            boolean copied = false;
+            try {
+                copied = transferScheduler.run(() -> {
+                    TransferScheduler.Task task;
+                    while ((task = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                        if (isStopRequested()) return null;
+                    }
+                    return task != TransferScheduler.END_OF_TASKS ? task : null;
+                }, this::isStopRequested);
+            } finally {
+                if (!copied) abortRequested = true;
+                // the caller may roll back only once the crawler has stopped creating directories
+                copied &= crawler.get();
             }
-            return true;
+            return copied;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         } catch (Exception e) {
             return false;
         }
     }
 
-    private boolean copyFileIntoDeviceFolder(File file, Uri documentUri) {
-        if (cancelRequested) return false;
-        final String fileName = file.getName();
-        final String mimeType = getMimeType(fileName);
+    private boolean offerUntilStopped(BlockingQueue<TransferScheduler.Task> queue, TransferScheduler.Task task) {
         try {
-            final ContentResolver cr = getContentResolver();
-            final Uri docUri = DocumentsContract.createDocument(cr, documentUri, mimeType, fileName);
-            if (docUri == null) throw new IOException("Failed to create document at destination");
-            try (InputStream is = new FileInputStream(file); OutputStream os = cr.openOutputStream(docUri)) {
-                if (os == null) throw new IOException("Failed to open output stream to file");
-                final byte[] buffer = new byte[BUFFER_SIZE];
-                int len;
-                while ((len = is.read(buffer)) > 0) {
-                    os.write(buffer, 0, len);
-                }
-                os.flush();
-                return true;
+            while (!queue.offer(task, 100, TimeUnit.MILLISECONDS)) {
+                if (isStopRequested()) return false;
             }
-        } catch (Exception e) {
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
         }
     }
 
-    private void showResultDialog(String title, String message) {
-        runOnUiThread(() -> {
-            if (!isFinishing()) {
-                new AlertDialog.Builder(this).setTitle(title).setMessage(message).setCancelable(true).setPositiveButton("OK", null).create().show();
+    private static ScanResult scanLocalTree(File root) {
+        final ScanResult scan = new ScanResult();
+        final ArrayDeque<File> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            final File[] children = pending.pop().listFiles();
+            if (children == null) continue;
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    pending.push(child);
+                } else {
+                    scan.add(child.length());
+                }
             }
-        });
+        }
+        return scan;
     }
 
-    private void showProgressDialog(String message) {
-        runOnUiThread(() -> {
-            cancelRequested = false;
-
-            ProgressBar progressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
-            progressBar.setIndeterminate(true);
-
-            AlertDialog.Builder builder = new AlertDialog.Builder(this).setTitle(message).setView(progressBar).setCancelable(false).setNegativeButton("Cancel", (dialog, which) -> cancelRequested = true);
-            progressDialog = builder.create();
-
-            if (!isFinishing()) {
-                progressDialog.show();
+    private boolean copyFile(Uri fileUri, File destFile) {
+        final String key = destFile.getPath();
+        final TransferJournal.FileState state = journalState(key);
+        if (state != null && state.done && destFile.isFile()) {
+            transferProgress.addBytes(destFile.length());
+            transferProgress.fileCompleted();
+            return true;
+        }
+        // resume after the last committed offset, anything written past it is written again
+        final long offset = state != null ? Math.min(state.offset, destFile.length()) : 0;
+        final Checksum checksum = verifyTransfers ? newChecksum() : null;
+        try {
+            try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(fileUri, "r")) {
+                if (pfd == null) return false;
+                try (FileInputStream is = new FileInputStream(pfd.getFileDescriptor()); RandomAccessFile os = new RandomAccessFile(destFile, "rw")) {
+                    final boolean seekable = isSeekableFile(pfd.getFileDescriptor());
+                    // a checksum has to see the skipped prefix as well
+                    final boolean readPrefix = !seekable || checksum != null;
+                    if (offset > 0 && readPrefix && !discard(is.getChannel(), offset, checksum)) return false;
+                    os.setLength(offset);
+                    os.seek(offset);
+                    if (!preallocate(os.getFD(), offset, pfd.getStatSize() - offset)) {
+                        Log.w(TAG, "No space left for " + key);
+                        return false;
+                    }
+                    transferProgress.addBytes(offset);
+                    final boolean copied;
+                    if (seekable && checksum == null) {
+                        // regular file: let the kernel move the bytes (sendfile/copy_file_range)
+                        transferReport.record(destFile.getName(), TransferPath.ZERO_COPY);
+                        is.getChannel().position(offset);
+                        copied = transferChannel(is.getChannel(), os.getChannel(), key);
+                    } else {
+                        // pipe or socket (e.g. streamed by the provider), or the bytes have to be
+                        // hashed: fall back to the buffered loop
+                        transferReport.record(destFile.getName(), TransferPath.STREAM);
+                        copied = copyStream(is.getChannel(), os.getChannel(), key, offset, checksum, pfd.getStatSize());
+                    }
+                    if (!copied) return false;
+                    // a source shorter than its announced size leaves preallocated bytes behind
+                    os.setLength(os.getFilePointer());
+                    if (durability == Durability.STRICT) os.getFD().sync();
+                }
             }
-        });
+            if (checksum != null) {
+                try (FileInputStream stored = new FileInputStream(destFile)) {
+                    if (!verifyDestination(stored.getChannel(), checksum, key, bufferSizeFor(destFile.length()))) return false;
+                }
+                checksums.put(publishedFile(destFile).getPath(), destFile.length(), destFile.lastModified(), checksum);
+            }
+            return fileDone(key);
+        } catch (Exception e) {
+            return false;
+        }
     }
 
-    private void dismissProgressDialog() {
-        dismissProgressDialog(null);
+    private boolean transferChannel(FileChannel in, FileChannel out, String journalKey) throws IOException {
+        final long size = in.size();
+        long position = in.position();
+        while (position < size) {
+            if (isStopRequested()) return false;
+            final long transferred = in.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), out);
+            if (transferred <= 0) return false;
+            position += transferred;
+            transferProgress.addBytes(transferred);
+            if (position < size) journalCommitted(journalKey, position);
+        }
+        return true;
     }
 
-    private void dismissProgressDialog(Runnable postDismiss) {
-        runOnUiThread(() -> {
-            if (!isFinishing()) {
-                if (progressDialog != null && progressDialog.isShowing()) {
-                    progressDialog.dismiss();
+    /**
+     * @param checksum updated with every byte written, or null
+     * @param size the length of the whole file, -1 if unknown; picks the buffer and whether
+     * the copy is overlapped
+     */
+    private boolean copyStream(ReadableByteChannel in, WritableByteChannel out, String journalKey, long offset, Checksum checksum, long size) throws IOException, InterruptedException {
+        final int bufferSize = bufferSizeFor(size);
+        // only worth a second thread for large files, a small one is a read or two
+        if (size < 0 || size >= LARGE_FILE_THRESHOLD) return copyOverlapped(in, out, journalKey, offset, checksum, bufferSize);
+        final ByteBuffer buffer = bufferPool.acquire(bufferSize);
+        try {
+            long position = offset;
+            long committed = offset;
+            int len;
+            while ((len = in.read(buffer)) >= 0) {
+                if (isStopRequested()) return false;
+                if (len == 0) continue;
+                buffer.flip();
+                if (checksum != null) updateChecksum(checksum, buffer);
+                while (buffer.hasRemaining()) out.write(buffer);
+                buffer.clear();
+                position += len;
+                transferProgress.addBytes(len);
+                if (position - committed >= TRANSFER_CHUNK_SIZE) {
+                    journalCommitted(journalKey, position);
+                    committed = position;
                 }
             }
-            if (postDismiss != null) {
-                postDismiss.run();
-            }
-        });
+            return true;
+        } finally {
+            bufferPool.release(buffer);
+        }
     }
 
-    private void showErrorAndExit() {
-        runOnUiThread(() -> {
-            if (!isFinishing()) {
-                new AlertDialog.Builder(this).setTitle("Error").setMessage("Failed to create app-specific Documents directory.").setCancelable(false).setPositiveButton("OK", (dialog, which) -> finish()).show();
+    /**
+     * Same as {@link #copyStream}, but a reader thread fills a small ring of buffers while this
+     * thread drains them, so a slow source and a slow destination (typically both provider
+     * pipes) wait at the same time instead of one after the other.
+     */
+    private boolean copyOverlapped(ReadableByteChannel in, WritableByteChannel out, String journalKey, long offset, Checksum checksum, int bufferSize) throws IOException, InterruptedException {
+        final List<ByteBuffer> ring = new ArrayList<>();
+        final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(COPY_RING_SIZE);
+        // room for the end marker behind a full ring
+        final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(COPY_RING_SIZE + 1);
+        for (int i = 0; i < COPY_RING_SIZE; i++) {
+            final ByteBuffer buffer = bufferPool.acquire(bufferSize);
+            ring.add(buffer);
+            free.add(buffer);
+        }
+        final CountDownLatch readerDone = new CountDownLatch(1);
+        final Future<?> reader;
+        try {
+            reader = readerExecutor.submit(() -> {
+                try {
+                    while (true) {
+                        final ByteBuffer buffer = free.take();
+                        if (in.read(buffer) < 0) return null;
+                        buffer.flip();
+                        filled.put(buffer);
+                    }
+                } finally {
+                    filled.add(END_OF_STREAM);
+                    readerDone.countDown();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            for (ByteBuffer buffer : ring) bufferPool.release(buffer);
+            return false;
+        }
+        try {
+            long position = offset;
+            long committed = offset;
+            while (true) {
+                if (isStopRequested()) return false;
+                final ByteBuffer buffer = filled.take();
+                if (buffer == END_OF_STREAM) break;
+                final int len = buffer.remaining();
+                if (checksum != null) updateChecksum(checksum, buffer);
+                while (buffer.hasRemaining()) out.write(buffer);
+                buffer.clear();
+                free.add(buffer);
+                position += len;
+                transferProgress.addBytes(len);
+                if (position - committed >= TRANSFER_CHUNK_SIZE) {
+                    journalCommitted(journalKey, position);
+                    committed = position;
+                }
             }
-        });
+            // the end marker also follows a failed read
+            reader.get();
+            return true;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            reader.cancel(true);
+            // the buffers go back to the pool only once the reader can't touch them anymore
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    readerDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            for (ByteBuffer buffer : ring) bufferPool.release(buffer);
+            if (interrupted) Thread.currentThread().interrupt();
+        }
     }
 
-    private void showFileExistsError(String name) {
-        runOnUiThread(() -> {
-            if (!isFinishing()) {
-                new AlertDialog.Builder(this).setTitle("File or Folder exists").setMessage("A file or folder named \"" + name + "\" already exists in the destination. Operation stopped.").setCancelable(false).setPositiveButton("OK", null).show();
-            }
-        });
+    /**
+     * Picks the copy buffer for a file of {@code size} bytes (-1 if unknown): a small file is
+     * read in one go, with the size rounded up to a power of two of at least the file system
+     * block size so that the pool only sees a few distinct sizes. Large files and streams of
+     * unknown length get the large buffer.
+     */
+    private int bufferSizeFor(long size) {
+        if (size < 0 || size >= LARGE_BUFFER_SIZE) return LARGE_BUFFER_SIZE;
+        final int bytes = Math.max((int) size, blockSize);
+        final int rounded = Integer.highestOneBit(bytes);
+        return rounded == bytes ? bytes : rounded << 1;
     }
 
-    private boolean deleteRecursively(File file) {
-        if (file.isDirectory()) {
-            File[] files = file.listFiles();
-            if (files != null) for (File child : files) deleteRecursively(child);
+    // a power of two, as block sizes are, between MIN_BUFFER_SIZE and BUFFER_SIZE
+    private static int fileSystemBlockSize(File dir) {
+        try {
+            final long size = new StatFs(dir.getPath()).getBlockSizeLong();
+            if (size < MIN_BUFFER_SIZE || size > BUFFER_SIZE || Long.bitCount(size) != 1) return MIN_BUFFER_SIZE;
+            return (int) size;
+        } catch (IllegalArgumentException e) {
+            return MIN_BUFFER_SIZE;
         }
-        return file.delete();
     }
 
-    private boolean checkNameExistsInDeviceFolder(String name, Uri treeUri) {
-        if (treeUri == null) return false;
-        ContentResolver cr = getContentResolver();
-        try (Cursor c = cr.query(DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri)), new String[]{DocumentsContract.Document.COLUMN_DISPLAY_NAME}, null, null, null)) {
-            if (c != null) {
-                while (c.moveToNext()) {
-                    if (name.equals(c.getString(0))) {
-                        return true;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            //
-        }
-        return false;
+    // only once the copy is complete (and verified), so that a resume never skips a bad file
+    private boolean fileDone(String journalKey) {
+        journalDone(journalKey);
+        transferProgress.fileCompleted();
+        return true;
     }
 
-    private String queryDisplayNameFromTreeUri(Uri treeUri) {
-        final Uri docUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
-        try (Cursor cursor = getContentResolver().query(docUri, new String[]{DocumentsContract.Document.COLUMN_DISPLAY_NAME}, null, null, null)) {
-            if (cursor != null && cursor.moveToFirst()) {
-                return cursor.getString(0);
+    // skips on streams that can't seek, e.g. pipes
+    private boolean discard(ReadableByteChannel in, long count, Checksum checksum) throws IOException {
+        final ByteBuffer buffer = bufferPool.acquire(BUFFER_SIZE);
+        try {
+            long remaining = count;
+            while (remaining > 0) {
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                final int len = in.read(buffer);
+                if (len < 0) return false;
+                buffer.flip();
+                if (checksum != null) updateChecksum(checksum, buffer);
+                buffer.clear();
+                remaining -= len;
             }
+            return true;
+        } finally {
+            bufferPool.release(buffer);
         }
-        return null;
     }
 
-    private String queryFileName(Uri uri) {
-        String result = null;
-        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
+    /**
+     * Reads the destination back and compares it with the checksum computed while copying,
+     * which catches providers that accept writes but store less (or something else).
+     */
+    private boolean verifyDestination(ReadableByteChannel stored, Checksum written, String journalKey, int bufferSize) throws IOException {
+        final Checksum actual = newChecksum();
+        final ByteBuffer buffer = bufferPool.acquire(bufferSize);
+        try {
+            while (stored.read(buffer) >= 0) {
+                if (isStopRequested()) return false;
+                buffer.flip();
+                updateChecksum(actual, buffer);
+                buffer.clear();
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        if (actual.getValue() == written.getValue()) return true;
+        Log.w(TAG, "Checksum mismatch for " + journalKey);
+        // the committed prefix can't be trusted either, a resume starts over
+        journalCommitted(journalKey, 0);
+        return false;
+    }
+
+    // CRC32C is computed with the CPU's CRC instructions where available
+    private static Checksum newChecksum() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? new CRC32C() : new CRC32();
+    }
+
+    // leaves the buffer's position unchanged
+    private static void updateChecksum(Checksum checksum, ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            // only direct buffers from the pool, which hands them out from API 26 on
+            final int position = buffer.position();
+            checksum.update(buffer);
+            buffer.position(position);
+        }
+    }
+
+    private static String checksumAlgorithm() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? "CRC32C" : "CRC32";
+    }
+
+    // where a staged import will be once it is published
+    private File publishedFile(File staged) {
+        final String prefix = stagingRoot.getPath() + File.separator;
+        final String path = staged.getPath();
+        if (!path.startsWith(prefix)) return staged;
+        final int jobEnd = path.indexOf(File.separatorChar, prefix.length());
+        return jobEnd < 0 ? staged : new File(appDocumentsDir, path.substring(jobEnd + 1));
+    }
+
+    /**
+     * Flushes a job's staging folder to storage before it is published, so that a rename can
+     * never make a file visible whose content is still only in the page cache. In
+     * {@link Durability#GROUP_COMMIT} mode all files are synced here, concurrently, which lets
+     * the file system commit them together; in {@link Durability#STRICT} mode they were synced
+     * when written, only the folders are left.
+     */
+    private boolean syncStaged(File staging) {
+        if (durability == Durability.NONE) return true;
+        final List<TransferScheduler.Task> tasks = new ArrayList<>();
+        if (durability == Durability.GROUP_COMMIT) {
+            for (File file : listTree(staging, true)) tasks.add(transferTask(Uri.fromFile(file), 0, () -> syncPath(file)));
+        }
+        for (File dir : listTree(staging, false)) tasks.add(transferTask(Uri.fromFile(dir), 0, () -> syncPath(dir)));
+        tasks.add(transferTask(Uri.fromFile(staging), 0, () -> syncPath(staging)));
+        return runSyncs(tasks);
+    }
+
+    // not stopped by a failed or canceled transfer, what was copied is still made durable
+    private boolean runSyncs(List<TransferScheduler.Task> tasks) {
+        try {
+            return transferScheduler.runAll(tasks, () -> false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // persists the entries renamed into these folders
+    private boolean syncDirectories(Collection<File> dirs) {
+        if (durability == Durability.NONE) return true;
+        final List<TransferScheduler.Task> tasks = new ArrayList<>();
+        for (File dir : dirs) tasks.add(transferTask(Uri.fromFile(dir), 0, () -> syncPath(dir)));
+        return runSyncs(tasks);
+    }
+
+    /**
+     * Syncs the documents exported by the job in {@link Durability#GROUP_COMMIT} mode, all at
+     * its end. Only documents the provider backs with a regular file are synced; their folder
+     * entries are up to the provider.
+     */
+    private boolean syncDocuments() {
+        final List<TransferScheduler.Task> tasks = new ArrayList<>();
+        Uri documentUri;
+        while ((documentUri = unsyncedDocuments.poll()) != null) {
+            final Uri uri = documentUri;
+            tasks.add(transferTask(uri, 0, () -> {
+                try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r")) {
+                    if (pfd != null) Os.fsync(pfd.getFileDescriptor());
+                    return true;
+                } catch (ErrnoException e) {
+                    // not a file after all
+                    return e.errno == OsConstants.EINVAL;
+                } catch (Exception e) {
+                    Log.w(TAG, "Failed to sync " + uri, e);
+                    return false;
+                }
+            }));
+        }
+        return runSyncs(tasks);
+    }
+
+    // files and folders alike
+    private static boolean syncPath(File file) {
+        try {
+            final FileDescriptor fd = Os.open(file.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+            return true;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Failed to sync " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the files, or else the folders, below {@code root}
+     */
+    private static List<File> listTree(File root, boolean files) {
+        final List<File> found = new ArrayList<>();
+        final ArrayDeque<File> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            final File[] children = pending.pop().listFiles();
+            if (children == null) continue;
+            for (File child : children) {
+                if (child.isDirectory()) pending.push(child);
+                if (child.isDirectory() != files) found.add(child);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reserves the blocks of a destination file up front: a full disk fails the file at once
+     * instead of after most of it has been copied, and the file system can allocate the file in
+     * a few large extents instead of growing it write by write. The file grows to
+     * {@code offset + length}; once the copy is done it has to be truncated to what was written.
+     *
+     * @return false only if there is not enough space; file systems without fallocate just
+     * allocate while the file is written
+     */
+    private static boolean preallocate(FileDescriptor fd, long offset, long length) {
+        if (length < PREALLOCATE_THRESHOLD) return true;
+        try {
+            Os.posix_fallocate(fd, offset, length);
+            return true;
+        } catch (ErrnoException e) {
+            return e.errno != OsConstants.ENOSPC;
+        }
+    }
+
+    // -1 if unknown
+    private static long availableBytes(File dir) {
+        try {
+            return new StatFs(dir.getPath()).getAvailableBytes();
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Free space of the provider root holding the tree, from {@link DocumentsContract.Root#COLUMN_AVAILABLE_BYTES}.
+     * Many providers only let the system query their roots, then this is -1 (unknown).
+     */
+    private long availableBytes(Uri treeUri) {
+        final String treeId = DocumentsContract.getTreeDocumentId(treeUri);
+        final String[] projection = {DocumentsContract.Root.COLUMN_DOCUMENT_ID, DocumentsContract.Root.COLUMN_AVAILABLE_BYTES};
+        try (Cursor c = getContentResolver().query(DocumentsContract.buildRootsUri(treeUri.getAuthority()), projection, null, null, null)) {
+            if (c == null) return -1;
+            // the root whose document is the longest prefix of the tree's, if there are several
+            String match = null;
+            long available = -1;
+            while (c.moveToNext()) {
+                final String documentId = c.getString(0);
+                final boolean only = c.getCount() == 1;
+                if (!only && (documentId == null || !treeId.startsWith(documentId))) continue;
+                if (match != null && documentId.length() <= match.length()) continue;
+                match = documentId != null ? documentId : "";
+                available = c.isNull(1) ? -1 : c.getLong(1);
+            }
+            return available;
+        } catch (Exception e) {
+            Log.d(TAG, "Free space of " + treeUri.getAuthority() + " unknown: " + e);
+            return -1;
+        }
+    }
+
+    /**
+     * Free space of the volume holding a document, from its descriptor. Only regular files tell:
+     * a pipe of a streaming provider reports the pipe file system. -1 if unknown.
+     */
+    private long volumeAvailableBytes(Uri documentUri) {
+        try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(documentUri, "r")) {
+            return pfd != null ? volumeAvailableBytes(pfd.getFileDescriptor()) : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static long volumeAvailableBytes(FileDescriptor fd) {
+        if (!isSeekableFile(fd)) return -1;
+        try {
+            final StructStatVfs stat = Os.fstatvfs(fd);
+            return stat.f_bavail * stat.f_frsize;
+        } catch (ErrnoException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Admission control: a job that doesn't fit into {@code available} bytes (-1 if unknown,
+     * which always fits) is rejected before anything is written, and the progress dialog closed.
+     */
+    private boolean rejectIfNoSpace(long required, long available) {
+        if (available < 0 || required + FREE_SPACE_RESERVE <= available) return false;
+        final String message = spaceShortageMessage(required, available);
+        dismissProgressDialog(() -> showResultDialog("Not enough space", message));
+        return true;
+    }
+
+    /**
+     * Admission control of an export. Most providers don't tell their free space to apps, then
+     * the job is let in for now and {@code deferredRequired} bytes are checked on the volume of
+     * the first destination file it opens, before anything is streamed into it.
+     */
+    private boolean rejectExportIfNoSpace(long required, long available, long deferredRequired) {
+        if (available >= 0) return rejectIfNoSpace(required, available);
+        unadmittedBytes = deferredRequired;
+        return false;
+    }
+
+    /**
+     * The deferred admission of {@link #rejectExportIfNoSpace}, on a descriptor just opened for
+     * writing. Descriptors that don't tell leave the check to the next file.
+     *
+     * @return false if the export doesn't fit
+     */
+    private boolean admitOnVolume(FileDescriptor fd) {
+        final long required = unadmittedBytes;
+        if (required < 0) return true;
+        final long available = volumeAvailableBytes(fd);
+        if (available < 0) return true;
+        unadmittedBytes = -1;
+        if (required + FREE_SPACE_RESERVE <= available) return true;
+        spaceShortage = spaceShortageMessage(required, available);
+        Log.w(TAG, "Export stopped: " + spaceShortage);
+        return false;
+    }
+
+    private String spaceShortageMessage(long required, long available) {
+        return Formatter.formatShortFileSize(this, required) + " are needed, but only " + Formatter.formatShortFileSize(this, available) + " are free.";
+    }
+
+    // the message of a failed job, with the reason if it ran out of space
+    private String failedMessage(String message) {
+        final String shortage = spaceShortage;
+        return shortage != null ? message + " " + shortage : message;
+    }
+
+    private static boolean isSeekableFile(FileDescriptor fd) {
+        try {
+            return OsConstants.S_ISREG(Os.fstat(fd).st_mode);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private void startCopyFileToDeviceFolderWithProgress(File file, Uri treeUri) {
+        startCopyFileToDeviceFolderWithProgress(file, treeUri, null, ConflictPolicy.STOP);
+    }
+
+    private void startCopyFileToDeviceFolderWithProgress(File file, Uri treeUri, TransferJournal resumed, ConflictPolicy policy) {
+        showProgressDialog("Exporting file...");
+        executor.execute(() -> {
+            final String fileName = file.getName();
+            final String rootId = DocumentsContract.getTreeDocumentId(treeUri);
+            final Uri rootUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, rootId);
+            // the existing document that is overwritten, or the name of the new one
+            Uri replacedUri = null;
+            String targetName = resumed != null && resumed.job.targetName != null ? resumed.job.targetName : fileName;
+            final Map<String, DocumentTreeWalker.DocumentRecord> children = resumed == null ? queryChildDocuments(treeUri, rootId) : null;
+            destinationIndex = newDestinationIndex(treeUri, rootId, children);
+            final DocumentTreeWalker.DocumentRecord existing = children != null ? children.get(fileName) : null;
+            if (existing != null) {
+                if (policy == ConflictPolicy.STOP) {
+                    dismissProgressDialog(() -> showConflictDialog(Collections.singletonList(fileName), chosen -> startCopyFileToDeviceFolderWithProgress(file, treeUri, null, chosen)));
+                    return;
+                }
+                if (policy == ConflictPolicy.KEEP_BOTH) {
+                    targetName = uniqueName(fileName, false, children::containsKey);
+                } else if (existing.isDirectory()) {
+                    dismissProgressDialog(() -> showFileExistsError(fileName));
+                    return;
+                } else if (policy.keepsExisting(isUpToDate(file, treeUri, existing))) {
+                    dismissProgressDialog(() -> showResultDialog("Export File", "\"" + fileName + "\" already exists and was skipped."));
+                    return;
+                } else {
+                    replacedUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, existing.documentId);
+                }
+            }
+            if (replacedUri != null ? !canWriteDocument(replacedUri) : !canCreateDocuments(treeUri)) {
+                final String message = replacedUri != null ? "The existing file is read-only." : "The selected folder is read-only.";
+                dismissProgressDialog(() -> showResultDialog("Error", message));
+                return;
+            }
+
+            transferProgress.setTotal(file.length(), 1);
+            // an overwritten document is truncated first, only the difference has to fit
+            final long required = file.length() - (replacedUri != null ? Math.max(0, existing.size) : 0);
+            if (resumed == null) {
+                long available = availableBytes(treeUri);
+                if (available < 0 && replacedUri != null) available = volumeAvailableBytes(replacedUri);
+                // checked on the new document, or after the overwritten one has been truncated
+                if (rejectExportIfNoSpace(required, available, file.length())) return;
+            }
+            final List<String> destinations = Collections.singletonList(treeUri.toString());
+            openJournal(resumed, new TransferJournal.Job(TransferJournal.EXPORT_FILE, Collections.singletonList(file.getPath()), destinations, null, targetName, policy, destinations, Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION));
+            // a resume picks up the overwritten document from the journal like a created one
+            if (replacedUri != null) journalReplaced(file.getPath(), replacedUri);
+            final boolean ok = (replacedUri != null ? copyFileIntoDocument(file, replacedUri, 0, true) : copyFileIntoDeviceFolder(file, rootUri, targetName)) && syncDocuments();
+            final TransferJournal failed = endJournaledJob(!ok, null);
+            destinationIndex = null;
+
+            dismissProgressDialog(() -> {
+                if (cancelRequested) {
+                    showResultDialog("Export File", "The export operation was canceled.");
+                } else {
+                    if (ok) {
+                        showResultDialog("Export File", "File exported successfully!");
+                    } else {
+                        showFailedDialog("Export File", failedMessage("Export failed!"), failed);
+                    }
+                }
+            });
+        });
+    }
+
+    private void startCopyFolderToDeviceFolderWithProgress(File folder, Uri treeUri) {
+        startCopyFolderToDeviceFolderWithProgress(folder, treeUri, null, ConflictPolicy.STOP);
+    }
+
+    /**
+     * @param policy STOP or KEEP_BOTH; the other policies merge into the existing folder, which
+     * is what {@link #startSyncFolderToDeviceFolderWithProgress} does
+     */
+    private void startCopyFolderToDeviceFolderWithProgress(File folder, Uri treeUri, TransferJournal resumed, ConflictPolicy policy) {
+        showProgressDialog("Exporting folder...");
+        executor.execute(() -> {
+            final String folderName = folder.getName();
+            final String rootId = DocumentsContract.getTreeDocumentId(treeUri);
+            // a KEEP_BOTH name was picked when the job started
+            String targetName = resumed != null && resumed.job.targetName != null ? resumed.job.targetName : folderName;
+            final Map<String, DocumentTreeWalker.DocumentRecord> children = resumed == null ? queryChildDocuments(treeUri, rootId) : null;
+            destinationIndex = newDestinationIndex(treeUri, rootId, children);
+            if (children != null && children.containsKey(folderName)) {
+                if (policy != ConflictPolicy.KEEP_BOTH) {
+                    dismissProgressDialog(() -> showSyncDialog(folder, treeUri));
+                    return;
+                }
+                targetName = uniqueName(folderName, true, children::containsKey);
+            }
+            if (!canCreateDocuments(treeUri)) {
+                dismissProgressDialog(() -> showResultDialog("Error", "The selected folder is read-only."));
+                return;
+            }
+
+            final ScanResult scan = scanLocalTree(folder);
+            transferProgress.setTotal(scan.bytes, scan.files);
+            if (resumed == null && rejectExportIfNoSpace(scan.bytes, availableBytes(treeUri), scan.bytes)) return;
+            final List<String> destinations = Collections.singletonList(treeUri.toString());
+            openJournal(resumed, new TransferJournal.Job(TransferJournal.EXPORT_FOLDER, Collections.singletonList(folder.getPath()), destinations, null, targetName, policy, destinations, Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION));
+            final List<TransferScheduler.Task> tasks = new ArrayList<>();
+            final boolean ok = createFolderTree(folder, DocumentsContract.buildDocumentUriUsingTree(treeUri, rootId), targetName, tasks) && runTransfers(tasks) && syncDocuments();
+            final TransferJournal failed = endJournaledJob(!ok, null);
+            destinationIndex = null;
+
+            dismissProgressDialog(() -> {
+                if (cancelRequested) {
+                    showResultDialog("Export Folder", "The export operation was canceled.");
+                } else {
+                    if (ok) {
+                        showResultDialog("Export Folder", "Folder exported successfully!");
+                    } else {
+                        showFailedDialog("Export Folder", failedMessage("Export failed!"), failed);
+                    }
+                }
+            });
+        });
+    }
+
+    private void showSyncDialog(File folder, Uri treeUri) {
+        if (isFinishing()) return;
+        final String[] labels = {"Sync: skip identical, overwrite others", "Sync and delete removed files", ConflictPolicy.SKIP.label, ConflictPolicy.OVERWRITE.label, ConflictPolicy.KEEP_BOTH.label};
+        new AlertDialog.Builder(this).setTitle("\"" + folder.getName() + "\" already exists").setItems(labels, (dialog, which) -> {
+            switch (which) {
+                case 0:
+                    startSyncFolderToDeviceFolderWithProgress(folder, treeUri, ConflictPolicy.SKIP_IF_IDENTICAL, false);
+                    break;
+                case 1:
+                    startSyncFolderToDeviceFolderWithProgress(folder, treeUri, ConflictPolicy.SKIP_IF_IDENTICAL, true);
+                    break;
+                case 2:
+                    startSyncFolderToDeviceFolderWithProgress(folder, treeUri, ConflictPolicy.SKIP, false);
+                    break;
+                case 3:
+                    startSyncFolderToDeviceFolderWithProgress(folder, treeUri, ConflictPolicy.OVERWRITE, false);
+                    break;
+                default:
+                    startCopyFolderToDeviceFolderWithProgress(folder, treeUri, null, ConflictPolicy.KEEP_BOTH);
+            }
+        }).setNegativeButton("Cancel", null).show();
+    }
+
+    /**
+     * Brings an existing copy of the folder in the device folder up to date. A sync is not
+     * journaled: it is idempotent, so an interrupted sync is completed by syncing again.
+     *
+     * @param policy decides which existing files are overwritten
+     */
+    private void startSyncFolderToDeviceFolderWithProgress(File folder, Uri treeUri, ConflictPolicy policy, boolean prune) {
+        showProgressDialog("Syncing folder...");
+        executor.execute(() -> {
+            final String folderName = folder.getName();
+            final DocumentTreeWalker walker = new DocumentTreeWalker(getContentResolver(), treeUri, crawlExecutor, QUERY_PREFETCH, this::isStopRequested);
+            final Map<String, DocumentTreeWalker.DocumentRecord> roots = queryChildDocuments(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+            destinationIndex = newDestinationIndex(treeUri, DocumentsContract.getTreeDocumentId(treeUri), roots);
+            final DocumentTreeWalker.DocumentRecord target = roots != null ? roots.get(folderName) : null;
+            if (target == null || !target.isDirectory()) {
+                dismissProgressDialog(() -> showFileExistsError(folderName));
+                return;
+            }
+
+            final SyncPlan plan = new SyncPlan();
+            final boolean planned = planSync(walker, treeUri, folder, target.documentId, policy, prune, plan);
+            transferProgress.setTotal(plan.transfer.bytes, plan.transfer.files);
+            // replaced documents may free some of it, but only once they are gone
+            if (planned && rejectExportIfNoSpace(plan.transfer.bytes, availableBytes(treeUri), plan.transfer.bytes)) {
+                destinationIndex = null;
+                return;
+            }
+            // new folders are created by the first round, their files are transferred in the second
+            final boolean ok = planned && runTransfers(plan.tasks) && runTransfers(new ArrayList<>(plan.followUps)) && syncDocuments();
+            destinationIndex = null;
+
+            dismissProgressDialog(() -> {
+                if (cancelRequested) {
+                    showResultDialog("Sync Folder", "The sync operation was canceled.");
+                } else if (!ok) {
+                    showResultDialog("Sync Folder", failedMessage("Sync failed!"));
+                } else if (plan.tasks.isEmpty()) {
+                    showResultDialog("Sync Folder", "The folder is already up to date.");
+                } else {
+                    String message = plan.transfer.files + " file(s) transferred, " + plan.deletions + " deleted.";
+                    if (plan.conflicts > 0) message += " " + plan.conflicts + " item(s) were skipped because a file and a folder have the same name.";
+                    showResultDialog("Sync Folder", message);
+                }
+            });
+        });
+    }
+
+    /**
+     * Compares one local folder with its copy and adds the transfers and deletions needed to
+     * make them equal to the plan, recursing into folders that exist on both sides.
+     *
+     * @return false if the destination could not be listed
+     */
+    private boolean planSync(DocumentTreeWalker walker, Uri treeUri, File folder, String documentId, ConflictPolicy policy, boolean prune, SyncPlan plan) {
+        if (isStopRequested()) return false;
+        final List<DocumentTreeWalker.DocumentRecord> children = walker.queryChildren(documentId);
+        if (children == null) return false;
+        final Map<String, DocumentTreeWalker.DocumentRecord> remote = new HashMap<>();
+        for (DocumentTreeWalker.DocumentRecord child : children) remote.put(child.displayName, child);
+        final DestinationIndex index = destinationIndex;
+        if (index != null) index.seed(documentId, remote);
+        final Uri folderUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId);
+
+        final File[] locals = folder.listFiles();
+        if (locals == null) return false;
+        for (File local : locals) {
+            final DocumentTreeWalker.DocumentRecord copy = remote.remove(local.getName());
+            if (copy != null && copy.isDirectory() != local.isDirectory()) {
+                if (!prune) {
+                    Log.w(TAG, "Sync skipped " + local + ": a file and a folder have the same name");
+                    plan.conflicts++;
+                    continue;
+                }
+                // replaced as a whole: the copy is deleted before the local item is transferred
+                plan.deletions++;
+                if (local.isDirectory()) {
+                    plan.transfer.add(scanLocalTree(local));
+                    plan.tasks.add(transferTask(treeUri, 0, () -> deleteDestinationDocument(treeUri, documentId, copy) && createFolderTree(local, folderUri, local.getName(), plan.followUps)));
+                } else {
+                    plan.transfer.add(local.length());
+                    plan.tasks.add(transferTask(treeUri, local.length(), () -> deleteDestinationDocument(treeUri, documentId, copy) && copyFileIntoDeviceFolder(local, folderUri)));
+                }
+            } else if (local.isDirectory()) {
+                if (copy != null) {
+                    if (!planSync(walker, treeUri, local, copy.documentId, policy, prune, plan)) return false;
+                } else {
+                    plan.transfer.add(scanLocalTree(local));
+                    plan.tasks.add(transferTask(treeUri, 0, () -> createFolderTree(local, folderUri, local.getName(), plan.followUps)));
+                }
+            } else if (copy == null) {
+                plan.transfer.add(local.length());
+                plan.tasks.add(transferTask(treeUri, local.length(), () -> copyFileIntoDeviceFolder(local, folderUri)));
+            } else if (!policy.keepsExisting(isUpToDate(local, treeUri, copy))) {
+                final Uri copyUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, copy.documentId);
+                plan.transfer.add(local.length());
+                plan.tasks.add(transferTask(treeUri, local.length(), () -> copyFileIntoDocument(local, copyUri, 0, true)));
+            }
+        }
+        if (prune) {
+            // whatever is left exists only in the destination
+            for (DocumentTreeWalker.DocumentRecord orphan : remote.values()) {
+                plan.deletions++;
+                plan.tasks.add(transferTask(treeUri, 0, () -> deleteDestinationDocument(treeUri, documentId, orphan)));
+            }
+        }
+        return true;
+    }
+
+    private boolean deleteDestinationDocument(Uri treeUri, String parentId, DocumentTreeWalker.DocumentRecord document) {
+        final Uri documentUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, document.documentId);
+        try {
+            if (!DocumentsContract.deleteDocument(getContentResolver(), documentUri)) return false;
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to delete " + documentUri, e);
+            return false;
+        }
+        final DestinationIndex index = destinationIndex;
+        if (index != null) index.deleted(parentId, document.displayName);
+        return true;
+    }
+
+    private DestinationIndex newDestinationIndex(Uri treeUri, String rootId, Map<String, DocumentTreeWalker.DocumentRecord> rootChildren) {
+        final DestinationIndex index = new DestinationIndex(treeUri, new DocumentTreeWalker(getContentResolver(), treeUri, crawlExecutor, QUERY_PREFETCH, this::isStopRequested));
+        // the listing the clash checks of the job were made with, no need to query it again
+        if (rootChildren != null) index.seed(rootId, rootChildren);
+        return index;
+    }
+
+    /**
+     * Creates a document in the destination of the running export after a lookup in its
+     * name index. The intent is journaled first: a document of that name is only taken over
+     * when resuming a job that recorded the intent for {@code key}, i.e. created the document
+     * but was interrupted before journaling it. Any other document of that name is left alone.
+     *
+     * @return the document, or null if it could not be created or the name is taken
+     */
+    private Uri createDestinationDocument(String key, Uri parentUri, String mimeType, String name) throws FileNotFoundException {
+        final DestinationIndex index = destinationIndex;
+        final String parentId = DocumentsContract.getDocumentId(parentUri);
+        if (index != null) {
+            final Uri existing = index.find(parentId, name);
+            if (existing != null) {
+                if (isResuming() && journalState(key) != null) return existing;
+                Log.w(TAG, "\"" + name + "\" already exists at the destination");
+                return null;
+            }
+        }
+        journalCreating(key);
+        final Uri created = DocumentsContract.createDocument(getContentResolver(), parentUri, mimeType, name);
+        if (created != null && index != null) index.created(parentId, name, created, DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType));
+        return created;
+    }
+
+    private boolean isUpToDate(File local, Uri treeUri, DocumentTreeWalker.DocumentRecord copy) {
+        if (!isCopyCurrent(copy.size, copy.lastModified, local.length(), local.lastModified())) return false;
+        if (!verifyTransfers) return true;
+        // in verify mode, only a copy verified against this very file since it last changed is trusted
+        final String stored = checksums.get(documentKey(DocumentsContract.buildDocumentUriUsingTree(treeUri, copy.documentId)), local);
+        if (stored == null) return false;
+        // the file may also have been verified on an import, then both must agree
+        final String own = checksums.get(local);
+        return own == null || own.equals(stored);
+    }
+
+    // names a destination document independently of the tree it was reached through
+    private static String documentKey(Uri documentUri) {
+        return documentUri.getAuthority() + '/' + DocumentsContract.getDocumentId(documentUri);
+    }
+
+    /**
+     * Creates a folder and all its sub-folders in the destination, one document at a time in
+     * tree order, and collects a transfer task for every file below it. The files are left to
+     * the transfer scheduler, so small ones are copied concurrently instead of one by one.
+     */
+    private boolean createFolderTree(File folder, Uri documentUri, String folderName, Collection<TransferScheduler.Task> fileTasks) {
+        if (isStopRequested()) return false;
+        try {
+            final TransferJournal.FileState state = journalState(folder.getPath());
+            Uri folderUri = state != null && state.documentUri != null ? Uri.parse(state.documentUri) : null;
+            if (folderUri == null) {
+                folderUri = createDestinationDocument(folder.getPath(), documentUri, DocumentsContract.Document.MIME_TYPE_DIR, folderName);
+                if (folderUri == null) {
+                    return false;
+                }
+                journalCreated(folder.getPath(), folderUri);
+            }
+            final File[] children = folder.listFiles();
+            if (children == null) return true;
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    if (!createFolderTree(child, folderUri, child.getName(), fileTasks)) return false;
+                } else {
+                    final Uri parentUri = folderUri;
+                    fileTasks.add(transferTask(folderUri, child.length(), () -> copyFileIntoDeviceFolder(child, parentUri)));
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private boolean copyFileIntoDeviceFolder(File file, Uri documentUri) {
+        return copyFileIntoDeviceFolder(file, documentUri, file.getName());
+    }
+
+    private boolean copyFileIntoDeviceFolder(File file, Uri documentUri, String fileName) {
+        if (isStopRequested()) return false;
+        final String key = file.getPath();
+        final TransferJournal.FileState state = journalState(key);
+        if (state != null && state.done) {
+            transferProgress.addBytes(file.length());
+            transferProgress.fileCompleted();
+            return true;
+        }
+        final String mimeType = getMimeType(fileName);
+        try {
+            Uri docUri = state != null && state.documentUri != null ? Uri.parse(state.documentUri) : null;
+            long offset = docUri != null ? state.offset : 0;
+            if (docUri == null) {
+                docUri = createDestinationDocument(key, documentUri, mimeType, fileName);
+                if (docUri == null) throw new IOException("Failed to create document at destination");
+                journalCreated(key, docUri);
+            }
+            // when resuming, the document may have been taken over with content
+            return copyFileIntoDocument(file, docUri, offset, state != null || isResuming());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param offset the length of the document that is already written, 0 to rewrite it
+     * @param hasContent whether the document may already have content that must be replaced
+     */
+    private boolean copyFileIntoDocument(File file, Uri docUri, long offset, boolean hasContent) {
+        final String key = file.getPath();
+        final String fileName = file.getName();
+        try {
+            final ContentResolver cr = getContentResolver();
+            ParcelFileDescriptor pfd = null;
+            if (offset > 0) {
+                // appending needs a seekable descriptor, pipes can only be rewritten from the start
+                try {
+                    pfd = cr.openFileDescriptor(docUri, "rw");
+                } catch (FileNotFoundException | IllegalArgumentException e) {
+                    pfd = null;
+                }
+                if (pfd != null && !isSeekableFile(pfd.getFileDescriptor())) {
+                    pfd.close();
+                    pfd = null;
+                }
+                if (pfd == null) offset = 0;
+            }
+            if (pfd == null) pfd = cr.openFileDescriptor(docUri, hasContent ? "wt" : "w");
+            if (pfd == null) throw new IOException("Failed to open file descriptor to file");
+            final Checksum checksum = verifyTransfers ? newChecksum() : null;
+            try (ParcelFileDescriptor dest = pfd; FileInputStream is = new FileInputStream(file); FileOutputStream os = new FileOutputStream(dest.getFileDescriptor())) {
+                transferProgress.addBytes(offset);
+                final boolean copied;
+                final boolean seekable = isSeekableFile(dest.getFileDescriptor());
+                if (seekable) {
+                    os.getChannel().truncate(offset);
+                    if (!admitOnVolume(dest.getFileDescriptor())) return false;
+                    os.getChannel().position(offset);
+                    if (!preallocate(dest.getFileDescriptor(), offset, file.length() - offset)) {
+                        Log.w(TAG, "No space left for " + key);
+                        return false;
+                    }
+                    if (checksum == null) {
+                        transferReport.record(fileName, TransferPath.ZERO_COPY);
+                        is.getChannel().position(offset);
+                        copied = transferChannel(is.getChannel(), os.getChannel(), key);
+                    } else {
+                        transferReport.record(fileName, TransferPath.STREAM);
+                        copied = discard(is.getChannel(), offset, checksum) && copyStream(is.getChannel(), os.getChannel(), key, offset, checksum, file.length());
+                    }
+                } else {
+                    transferReport.record(fileName, TransferPath.STREAM);
+                    copied = copyStream(is.getChannel(), os.getChannel(), key, 0, checksum, file.length());
+                }
+                if (!copied) return false;
+                // the file may have shrunk since it was measured
+                if (seekable) os.getChannel().truncate(os.getChannel().position());
+                // a pipe is synced by the provider, if at all
+                if (seekable && durability == Durability.STRICT) os.getFD().sync();
+                if (seekable && durability == Durability.GROUP_COMMIT) unsyncedDocuments.add(docUri);
+            }
+            if (checksum != null) {
+                // after closing, providers may only commit the upload then
+                try (ParcelFileDescriptor stored = cr.openFileDescriptor(docUri, "r")) {
+                    if (stored == null) throw new IOException("Failed to open file descriptor to file");
+                    try (FileInputStream in = new FileInputStream(stored.getFileDescriptor())) {
+                        if (!verifyDestination(in.getChannel(), checksum, key, bufferSizeFor(file.length()))) return false;
+                    }
+                }
+                checksums.put(documentKey(docUri), file.length(), file.lastModified(), checksum);
+            }
+            return fileDone(key);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the staging folder of the resumed job, or a new empty one; null on failure
+     */
+    private File openStaging(TransferJournal resumed) {
+        if (resumed != null && resumed.job.staging != null) {
+            final File staging = new File(resumed.job.staging);
+            if (staging.isDirectory() || staging.mkdirs()) return staging;
+            return null;
+        }
+        final File staging = new File(stagingRoot, UUID.randomUUID().toString());
+        return staging.mkdirs() ? staging : null;
+    }
+
+    /**
+     * Moves staged files or folders to their final names with rename(2). If one of them can't
+     * be published, the ones already moved are moved back, so the import stays all-or-nothing.
+     *
+     * @param replace whether existing destinations are replaced; they are moved into the staging
+     * folder first, so that they can be restored as well
+     */
+    private static boolean publishStaged(File staging, List<File> staged, List<File> destinations, boolean replace) {
+        final StagedPublisher publisher = new StagedPublisher(staging);
+        for (int i = 0; i < staged.size(); i++) {
+            if (!publisher.publish(staged.get(i), destinations.get(i), replace)) {
+                publisher.rollback();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // like publishStaged, for a staged folder whose content goes into an existing one
+    private static boolean mergeStaged(File staging, File stagedDir, File destDir) {
+        final StagedPublisher publisher = new StagedPublisher(staging);
+        if (publisher.merge(stagedDir, destDir)) return true;
+        publisher.rollback();
+        return false;
+    }
+
+    /**
+     * A copy is taken as identical to its original when the sizes match and the copy was written
+     * after the original's last change. Unknown sizes or times never match.
+     */
+    private static boolean isCopyCurrent(long copySize, long copyModified, long size, long lastModified) {
+        return size >= 0 && copySize == size && lastModified > 0 && copyModified >= lastModified;
+    }
+
+    // "name (n).ext" with the first n that is not taken; folders are numbered at the end
+    static String uniqueName(String name, boolean isDirectory, Predicate<String> taken) {
+        final int dot = isDirectory ? -1 : name.lastIndexOf('.');
+        final String base = dot > 0 ? name.substring(0, dot) : name;
+        final String extension = dot > 0 ? name.substring(dot) : "";
+        for (int n = 1; ; n++) {
+            final String candidate = base + " (" + n + ")" + extension;
+            if (!taken.test(candidate)) return candidate;
+        }
+    }
+
+    private static File uniqueFile(File dir, String name, boolean isDirectory, Set<String> reserved) {
+        return new File(dir, uniqueName(name, isDirectory, candidate -> reserved.contains(candidate) || new File(dir, candidate).exists()));
+    }
+
+    /**
+     * @return the children of a document by display name, or null if they can't be listed
+     */
+    private Map<String, DocumentTreeWalker.DocumentRecord> queryChildDocuments(Uri treeUri, String documentId) {
+        final List<DocumentTreeWalker.DocumentRecord> children = new DocumentTreeWalker(getContentResolver(), treeUri, crawlExecutor, QUERY_PREFETCH, this::isStopRequested).queryChildren(documentId);
+        if (children == null) return null;
+        final Map<String, DocumentTreeWalker.DocumentRecord> byName = new HashMap<>();
+        for (DocumentTreeWalker.DocumentRecord child : children) byName.put(child.displayName, child);
+        return byName;
+    }
+
+    private void showConflictDialog(List<String> clashes, Consumer<ConflictPolicy> onChosen) {
+        if (isFinishing()) return;
+        final ConflictPolicy[] choices = {ConflictPolicy.SKIP, ConflictPolicy.SKIP_IF_IDENTICAL, ConflictPolicy.OVERWRITE, ConflictPolicy.KEEP_BOTH};
+        final String[] labels = new String[choices.length];
+        for (int i = 0; i < choices.length; i++) labels[i] = choices[i].label;
+        final String title = clashes.size() == 1 ? "\"" + clashes.get(0) + "\" already exists" : clashes.size() + " items already exist";
+        new AlertDialog.Builder(this).setTitle(title).setItems(labels, (dialog, which) -> onChosen.accept(choices[which])).setNegativeButton("Cancel", null).show();
+    }
+
+    /**
+     * Renames the staging folder out of the way and deletes it in the background, so a rollback
+     * costs one rename on the job thread.
+     */
+    private void dropStaging(File staging) {
+        final File trash = new File(staging.getPath() + ".trash");
+        final File target = staging.renameTo(trash) ? trash : staging;
+        try {
+            crawlExecutor.execute(() -> deleteRecursively(target));
+        } catch (RejectedExecutionException e) {
+            deleteRecursively(target);
+        }
+    }
+
+    // staging folders of crashed jobs that can't be resumed
+    private void dropStaleStaging(String keep) {
+        final File[] stale = stagingRoot.listFiles();
+        if (stale == null) return;
+        for (File staging : stale) {
+            if (!staging.getPath().equals(keep)) deleteRecursively(staging);
+        }
+    }
+
+    private void openJournal(TransferJournal resumed, TransferJournal.Job job) {
+        if (resumed != null) {
+            journal = resumed;
+            return;
+        }
+        for (String uri : job.grants) {
+            try {
+                getContentResolver().takePersistableUriPermission(Uri.parse(uri), job.grantFlags);
+            } catch (SecurityException e) {
+                Log.w(TAG, "No persistable permission for " + uri + ", the transfer can't be resumed after a restart");
+            }
+        }
+        try {
+            journal = TransferJournal.create(new File(getFilesDir(), JOURNAL_FILE_NAME), job);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to create the transfer journal", e);
+            journal = null;
+        }
+    }
+
+    private void closeJournal() {
+        final TransferJournal current = journal;
+        journal = null;
+        if (current == null) return;
+        current.delete();
+        releaseGrants(current.job);
+    }
+
+    /**
+     * Ends a journaled job. A job that failed, typically on an I/O error of a flaky drive, keeps
+     * its journal and staging folder so that it can be resumed from where it stopped instead of
+     * copying everything again; a finished or canceled job drops them.
+     *
+     * @return the journal of the failed job, reloaded for resuming, or null
+     */
+    private TransferJournal endJournaledJob(boolean failed, File staging) {
+        final TransferJournal current = journal;
+        if (failed && !cancelRequested && current != null) {
+            journal = null;
+            current.close();
+            final TransferJournal reloaded = TransferJournal.load(new File(getFilesDir(), JOURNAL_FILE_NAME));
+            if (reloaded != null) return reloaded;
+            releaseGrants(current.job);
+        } else {
+            closeJournal();
+        }
+        if (staging != null) dropStaging(staging);
+        return null;
+    }
+
+    private void releaseGrants(TransferJournal.Job job) {
+        for (String uri : job.grants) {
+            // a watched folder keeps its read permission
+            final int flags = watchedTrees.contains(uri) ? job.grantFlags & ~Intent.FLAG_GRANT_READ_URI_PERMISSION : job.grantFlags;
+            if (flags == 0) continue;
+            try {
+                getContentResolver().releasePersistableUriPermission(Uri.parse(uri), flags);
+            } catch (SecurityException e) {
+                //
+            }
+        }
+    }
+
+    private boolean isResuming() {
+        final TransferJournal current = journal;
+        return current != null && current.resumed;
+    }
+
+    private TransferJournal.FileState journalState(String key) {
+        final TransferJournal current = journal;
+        return current != null ? current.get(key) : null;
+    }
+
+    // before a document is created, so a resume knows it may be there
+    private void journalCreating(String key) {
+        final TransferJournal current = journal;
+        if (current != null) current.record(key, false, 0, null);
+    }
+
+    private void journalCreated(String key, Uri documentUri) {
+        final TransferJournal current = journal;
+        if (current != null) current.record(key, false, 0, documentUri.toString());
+    }
+
+    // an existing document that is overwritten: resumed like a created one, but never deleted
+    private void journalReplaced(String key, Uri documentUri) {
+        final TransferJournal current = journal;
+        if (current != null) current.record(key, false, 0, documentUri.toString(), true);
+    }
+
+    private void journalCommitted(String key, long offset) {
+        final TransferJournal current = journal;
+        if (current != null) current.record(key, false, offset, null);
+    }
+
+    private void journalDone(String key) {
+        final TransferJournal current = journal;
+        if (current != null) current.record(key, true, 0, null);
+    }
+
+    // the partial copy of a failed job is kept until the user resumes or discards it
+    private void showFailedDialog(String title, String message, TransferJournal failed) {
+        if (failed == null) {
+            showResultDialog(title, message);
+            return;
+        }
+        if (isFinishing()) return;
+        new AlertDialog.Builder(this).setTitle(title).setMessage(message + " Resume it, or discard the partially copied files?").setCancelable(false).setPositiveButton("Resume", (dialog, which) -> resumeTransfer(failed)).setNegativeButton("Discard", (dialog, which) -> discardTransfer(failed)).show();
+    }
+
+    private void showResumeDialog(TransferJournal interrupted) {
+        if (isFinishing()) return;
+        new AlertDialog.Builder(this).setTitle("Interrupted transfer").setMessage("A previous copy operation did not finish. Resume it, or discard the partially copied files?").setCancelable(false).setPositiveButton("Resume", (dialog, which) -> resumeTransfer(interrupted)).setNegativeButton("Discard", (dialog, which) -> discardTransfer(interrupted)).show();
+    }
+
+    private void resumeTransfer(TransferJournal interrupted) {
+        final TransferJournal.Job job = interrupted.job;
+        switch (job.type) {
+            case TransferJournal.IMPORT_FILES:
+                final List<Uri> uris = new ArrayList<>();
+                for (String source : job.sources) uris.add(Uri.parse(source));
+                startCopyFileWithProgress(uris, interrupted, job.conflictPolicy);
+                break;
+            case TransferJournal.IMPORT_FOLDER:
+                startCopyFolderWithProgress(Uri.parse(job.sources.get(0)), interrupted, job.conflictPolicy);
+                break;
+            case TransferJournal.EXPORT_FILE:
+                startCopyFileToDeviceFolderWithProgress(new File(job.sources.get(0)), Uri.parse(job.destinations.get(0)), interrupted, job.conflictPolicy);
+                break;
+            case TransferJournal.EXPORT_FOLDER:
+                startCopyFolderToDeviceFolderWithProgress(new File(job.sources.get(0)), Uri.parse(job.destinations.get(0)), interrupted, job.conflictPolicy);
+                break;
+            default:
+                discardTransfer(interrupted);
+        }
+    }
+
+    private void discardTransfer(TransferJournal interrupted) {
+        executor.execute(() -> {
+            final TransferJournal.Job job = interrupted.job;
+            if (job.staging != null) {
+                // nothing of an import is visible before it is published
+                dropStaging(new File(job.staging));
+            } else {
+                // only the document created for the exported item itself, nothing that was there before:
+                // an overwritten document is the user's own and is left as it is
+                final TransferJournal.FileState state = interrupted.get(job.sources.get(0));
+                if (state != null && state.documentUri != null && !state.replaced) {
+                    try {
+                        DocumentsContract.deleteDocument(getContentResolver(), Uri.parse(state.documentUri));
+                    } catch (Exception e) {
+                        Log.w(TAG, "Failed to delete the partially exported " + state.documentUri, e);
+                    }
+                }
+            }
+            interrupted.delete();
+            releaseGrants(job);
+        });
+    }
+
+    /**
+     * @param size the bytes the task transfers, 0 for metadata-only work, -1 if unknown
+     */
+    private TransferScheduler.Task transferTask(Uri source, long size, Callable<Boolean> work) {
+        return new TransferScheduler.Task(source.getAuthority(), size, () -> {
+            final boolean ok = work.call();
+            // let the sibling transfers of this job stop early, the job is rolled back anyway
+            if (!ok) abortRequested = true;
+            return ok;
+        });
+    }
+
+    /**
+     * A task of a job whose files are independent of each other: a failure is counted in
+     * {@code failures} instead of stopping the sibling transfers.
+     */
+    private TransferScheduler.Task independentTransferTask(Uri source, long size, AtomicInteger failures, Callable<Boolean> work) {
+        return new TransferScheduler.Task(source.getAuthority(), size, () -> {
+            if (!work.call()) failures.incrementAndGet();
+            return true;
+        });
+    }
+
+    private boolean runTransfers(List<TransferScheduler.Task> tasks) {
+        try {
+            return transferScheduler.runAll(tasks, this::isStopRequested);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean isStopRequested() {
+        return cancelRequested || abortRequested;
+    }
+
+    private void showResultDialog(String title, String message) {
+        runOnUiThread(() -> {
+            if (!isFinishing()) {
+                new AlertDialog.Builder(this).setTitle(title).setMessage(message).setCancelable(true).setPositiveButton("OK", null).create().show();
+            }
+        });
+    }
+
+    private void showProgressDialog(String message) {
+        runOnUiThread(() -> {
+            cancelRequested = false;
+            abortRequested = false;
+            unadmittedBytes = -1;
+            spaceShortage = null;
+            transferReport = new TransferReport();
+            transferProgress = new TransferProgress();
+            transferScheduler.resetMetrics();
+            unsyncedDocuments.clear();
+
+            LinearLayout layout = new LinearLayout(this);
+            layout.setOrientation(LinearLayout.VERTICAL);
+            layout.setPadding(dp(24), dp(12), dp(24), 0);
+
+            progressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+            progressBar.setIndeterminate(true);
+            progressBar.setMax(1000);
+            layout.addView(progressBar);
+
+            progressText = new TextView(this);
+            layout.addView(progressText);
+            progressTextNanos = 0;
+
+            AlertDialog.Builder builder = new AlertDialog.Builder(this).setTitle(message).setView(layout).setCancelable(false).setNegativeButton("Cancel", (dialog, which) -> cancelRequested = true);
+            progressDialog = builder.create();
+
+            if (!isFinishing()) {
+                progressDialog.show();
+                Choreographer.getInstance().postFrameCallback(progressTicker);
+            }
+        });
+    }
+
+    private void updateProgressViews(long frameTimeNanos) {
+        final TransferProgress progress = transferProgress;
+        if (progress.isDeterminate()) {
+            progressBar.setIndeterminate(false);
+            progressBar.setProgress(progress.getPermille());
+        }
+        if (frameTimeNanos - progressTextNanos < PROGRESS_TEXT_INTERVAL_NANOS) return;
+        progressTextNanos = frameTimeNanos;
+        progress.sample(frameTimeNanos);
+
+        final StringBuilder text = new StringBuilder(Formatter.formatShortFileSize(this, progress.getBytesTransferred()));
+        if (progress.isDeterminate()) {
+            text.append(" / ").append(Formatter.formatShortFileSize(this, progress.getTotalBytes()));
+        }
+        if (progress.getTotalFiles() > 1) {
+            text.append(" (").append(progress.getFilesTransferred()).append(" of ").append(progress.getTotalFiles()).append(" files)");
+        }
+        final double bytesPerSecond = progress.getBytesPerSecond();
+        if (bytesPerSecond > 0) {
+            text.append('\n').append(Formatter.formatShortFileSize(this, (long) bytesPerSecond)).append("/s");
+            final long remainingSeconds = progress.getRemainingSeconds();
+            if (remainingSeconds >= 0) {
+                text.append(", ").append(DateUtils.formatElapsedTime(remainingSeconds)).append(" left");
+            }
+        }
+        progressText.setText(text);
+    }
+
+    private void dismissProgressDialog() {
+        hideProgressDialog(null);
+    }
+
+    // every job ends here, journaled or not, on its background thread
+    private void dismissProgressDialog(Runnable postDismiss) {
+        checksums.save();
+        hideProgressDialog(postDismiss);
+    }
+
+    private void hideProgressDialog(Runnable postDismiss) {
+        final TransferReport report = transferReport;
+        if (report.fileCount() > 0) Log.i(TAG, "Transfer summary: " + report.summary() + "; " + transferScheduler.metricsSummary() + "; buffers: " + bufferPool.summary());
+        runOnUiThread(() -> {
+            Choreographer.getInstance().removeFrameCallback(progressTicker);
+            if (!isFinishing()) {
+                if (progressDialog != null && progressDialog.isShowing()) {
+                    progressDialog.dismiss();
+                }
+            }
+            if (postDismiss != null) {
+                postDismiss.run();
+            }
+        });
+    }
+
+    private void showErrorAndExit() {
+        runOnUiThread(() -> {
+            if (!isFinishing()) {
+                new AlertDialog.Builder(this).setTitle("Error").setMessage("Failed to create app-specific Documents directory.").setCancelable(false).setPositiveButton("OK", (dialog, which) -> finish()).show();
+            }
+        });
+    }
+
+    private void showFileExistsError(String name) {
+        runOnUiThread(() -> {
+            if (!isFinishing()) {
+                new AlertDialog.Builder(this).setTitle("File or Folder exists").setMessage("A file or folder named \"" + name + "\" already exists in the destination. Operation stopped.").setCancelable(false).setPositiveButton("OK", null).show();
+            }
+        });
+    }
+
+    private boolean deleteRecursively(File file) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) for (File child : files) deleteRecursively(child);
+        }
+        return file.delete();
+    }
+
+    /**
+     * @return the COLUMN_FLAGS of a document, or -1 if they are unknown
+     */
+    private int queryDocumentFlags(Uri documentUri) {
+        try (Cursor c = getContentResolver().query(documentUri, new String[]{DocumentsContract.Document.COLUMN_FLAGS}, null, null, null)) {
+            if (c != null && c.moveToFirst() && !c.isNull(0)) {
+                return c.getInt(0);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to query flags of " + documentUri, e);
+        }
+        return -1;
+    }
+
+    /**
+     * Probed before anything is journaled, instead of failing on the first createDocument.
+     * Unknown flags don't block the export, the provider has the last word.
+     */
+    private boolean canCreateDocuments(Uri treeUri) {
+        final int flags = queryDocumentFlags(DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri)));
+        return flags < 0 || (flags & DocumentsContract.Document.FLAG_DIR_SUPPORTS_CREATE) != 0;
+    }
+
+    // the same for overwriting an existing document
+    private boolean canWriteDocument(Uri documentUri) {
+        final int flags = queryDocumentFlags(documentUri);
+        return flags < 0 || (flags & DocumentsContract.Document.FLAG_SUPPORTS_WRITE) != 0;
+    }
+
+    private String queryDisplayNameFromTreeUri(Uri treeUri) {
+        final Uri docUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+        try (Cursor cursor = getContentResolver().query(docUri, new String[]{DocumentsContract.Document.COLUMN_DISPLAY_NAME}, null, null, null)) {
             if (cursor != null && cursor.moveToFirst()) {
-                int idx = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-                if (idx != -1) result = cursor.getString(idx);
+                return cursor.getString(0);
+            }
+        }
+        return null;
+    }
+
+    private String getMimeType(String fileName) {
+        String type = null;
+        int dot = fileName.lastIndexOf('.');
+        String ext = dot >= 0 ? fileName.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+        if (!ext.isEmpty()) {
+            type = MimeTypeMap.getSingleton().getMimeTypeFromExtension(ext);
+        }
+        return type != null ? type : "application/octet-stream";
+    }
+
+    private int dp(int dp) {
+        return (int) (dp * getResources().getDisplayMetrics().density);
+    }
+
+    /**
+     * Republishes the current listing. The index already follows every change in the
+     * Documents directory, so this never rescans the disk.
+     */
+    private void refreshFileList() {
+        if (documentsIndex != null) documentsIndex.publish();
+    }
+
+    /**
+     * Checks the top level of the Documents directory against the disk, in case the index
+     * missed an event. Cheap enough for resume and the user's own changes, not for every event.
+     */
+    private void recheckFileList() {
+        if (documentsIndex != null) documentsIndex.refresh();
+    }
+
+    /**
+     * In-memory index of a directory tree, kept current by one {@link FileObserver} per
+     * directory. Each event costs a single stat of the affected entry; new sub-directories are
+     * indexed and watched as they appear. The sorted listing of the root is handed to the
+     * listener whenever it changes, coalesced so that a burst of events results in one update.
+     * All index state is confined to a private worker thread.
+     */
+    static final class DirectoryIndex {
+        interface Listener {
+            /**
+             * Called on the index thread with a new, sorted listing of the root directory.
+             */
+            void onListingChanged(List<FileEntry> entries);
+        }
+
+        private static final int WATCH_MASK = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE | FileObserver.ATTRIB;
+        private static final long PUBLISH_DELAY_MS = 100;
+
+        private final File root;
+        private final Listener listener;
+        private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+        // directory path -> entry name -> snapshot
+        private final Map<String, Map<String, FileEntry>> directories = new HashMap<>();
+        private final Map<String, FileObserver> observers = new HashMap<>();
+        private boolean publishPending = false;
+        private boolean stopped = false;
+
+        DirectoryIndex(File root, Listener listener) {
+            this.root = root;
+            this.listener = listener;
+        }
+
+        void start() {
+            post(() -> {
+                indexTree(root);
+                publishNow();
+            });
+        }
+
+        void stop() {
+            post(() -> {
+                stopped = true;
+                for (FileObserver observer : observers.values()) observer.stopWatching();
+                observers.clear();
+                directories.clear();
+            });
+            worker.shutdown();
+        }
+
+        void publish() {
+            post(this::publishNow);
+        }
+
+        /**
+         * Lists the root again and applies what differs, without walking the tree below it.
+         * FileObserver doesn't report a queue overflow and watching may fail silently at the
+         * inotify limit, so events can get lost; the root is watched anew as well.
+         */
+        void refresh() {
+            post(() -> {
+                if (stopped) return;
+                final String path = root.getPath();
+                final FileObserver previous = observers.remove(path);
+                if (previous != null) previous.stopWatching();
+                // watch before listing, so that nothing created in between is missed
+                final FileObserver observer = newObserver(path);
+                observer.startWatching();
+                observers.put(path, observer);
+                final Map<String, FileEntry> entries = directories.computeIfAbsent(path, p -> new HashMap<>());
+                final Set<String> names = new HashSet<>(entries.keySet());
+                final String[] listed = root.list();
+                if (listed != null) Collections.addAll(names, listed);
+                for (String name : names) {
+                    final File file = new File(root, name);
+                    update(entries, file, FileEntry.stat(file));
+                }
+                publishNow();
+            });
+        }
+
+        private void post(Runnable action) {
+            try {
+                worker.execute(action);
+            } catch (RejectedExecutionException e) {
+                // stopped
+            }
+        }
+
+        private void indexTree(File dir) {
+            final ArrayDeque<File> pending = new ArrayDeque<>();
+            pending.push(dir);
+            while (!pending.isEmpty()) {
+                final File current = pending.pop();
+                final String path = current.getPath();
+                // watch before listing, so that nothing created in between is missed
+                if (!observers.containsKey(path)) {
+                    final FileObserver observer = newObserver(path);
+                    observer.startWatching();
+                    observers.put(path, observer);
+                }
+                final Map<String, FileEntry> entries = new HashMap<>();
+                final String[] names = current.list();
+                if (names != null) {
+                    for (String name : names) {
+                        final FileEntry entry = FileEntry.stat(new File(current, name));
+                        if (entry == null) continue;
+                        entries.put(name, entry);
+                        if (entry.isDirectory) pending.push(entry.file);
+                    }
+                }
+                directories.put(path, entries);
+            }
+        }
+
+        @SuppressWarnings("deprecation")
+        private FileObserver newObserver(String path) {
+            // FileObserver(File) needs API 29
+            return new FileObserver(path, WATCH_MASK) {
+                @Override
+                public void onEvent(int event, String name) {
+                    if (name == null) return;
+                    post(() -> apply(path, event & FileObserver.ALL_EVENTS, name));
+                }
+            };
+        }
+
+        private void apply(String dirPath, int event, String name) {
+            final Map<String, FileEntry> entries = directories.get(dirPath);
+            if (stopped || entries == null) return;
+            final File file = new File(dirPath, name);
+            final FileEntry current = (event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0 ? null : FileEntry.stat(file);
+            if (update(entries, file, current) && dirPath.equals(root.getPath())) schedulePublish();
+        }
+
+        /**
+         * @param current the entry as it is now, null if the file is gone
+         * @return whether the entry changed
+         */
+        private boolean update(Map<String, FileEntry> entries, File file, FileEntry current) {
+            final String name = file.getName();
+            final FileEntry old = entries.get(name);
+            if (current == null) {
+                if (old == null) return false;
+                entries.remove(name);
+                if (old.isDirectory) dropTree(file.getPath());
+            } else {
+                if (old != null && old.hasSameAttributes(current)) return false;
+                entries.put(name, current);
+                if (old != null && old.isDirectory && !current.isDirectory) dropTree(file.getPath());
+                if (current.isDirectory && (old == null || !old.isDirectory)) indexTree(file);
+            }
+            return true;
+        }
+
+        private void dropTree(String path) {
+            final String prefix = path + File.separator;
+            final Iterator<Map.Entry<String, FileObserver>> it = observers.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, FileObserver> observer = it.next();
+                if (observer.getKey().equals(path) || observer.getKey().startsWith(prefix)) {
+                    observer.getValue().stopWatching();
+                    it.remove();
+                }
+            }
+            directories.keySet().removeIf(dir -> dir.equals(path) || dir.startsWith(prefix));
+        }
+
+        private void schedulePublish() {
+            if (publishPending) return;
+            publishPending = true;
+            worker.schedule(this::publishNow, PUBLISH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private void publishNow() {
+            publishPending = false;
+            if (stopped) return;
+            final Map<String, FileEntry> entries = directories.get(root.getPath());
+            final List<FileEntry> listing = entries != null ? new ArrayList<>(entries.values()) : new ArrayList<>();
+            listing.sort(FileEntry.DISPLAY_ORDER);
+            listener.onListingChanged(listing);
+        }
+    }
+
+    /**
+     * Immutable snapshot of a directory entry, so sorting and binding never touch the disk.
+     */
+    static final class FileEntry {
+        static final Comparator<FileEntry> DISPLAY_ORDER = (e1, e2) -> {
+            if (e1.isDirectory != e2.isDirectory) return e1.isDirectory ? -1 : 1;
+            return e1.name.compareToIgnoreCase(e2.name);
+        };
+
+        final File file;
+        final String name;
+        final boolean isDirectory;
+        final long length;
+        final long lastModified;
+        // RecyclerView stable id, derived from the path so it survives re-listing
+        final long id;
+
+        FileEntry(File file, boolean isDirectory, long length, long lastModified) {
+            this.file = file;
+            this.name = file.getName();
+            this.isDirectory = isDirectory;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.id = pathHash(file.getPath());
+        }
+
+        boolean hasSameAttributes(FileEntry other) {
+            return isDirectory == other.isDirectory && length == other.length && lastModified == other.lastModified;
+        }
+
+        // 64-bit FNV-1a, collisions are negligible for the size of a directory listing
+        private static long pathHash(String path) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < path.length(); i++) {
+                hash ^= path.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        /**
+         * @return the snapshot, or null if the entry vanished in the meantime
+         */
+        static FileEntry stat(File file) {
+            try {
+                final StructStat st = Os.stat(file.getPath());
+                return new FileEntry(file, OsConstants.S_ISDIR(st.st_mode), st.st_size, st.st_mtime * 1000L);
+            } catch (ErrnoException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Walks a SAF document tree iteratively and breadth-first. Each children query is drained
+     * into a list of compact {@link DocumentRecord}s and its cursor closed before any child is
+     * visited, so no CursorWindow outlives its query and the depth of the tree is bounded by
+     * heap, not by the call stack. The children queries of the next few directories are
+     * issued ahead of time so that provider IPC overlaps with the visitor's work.
+     */
+    static final class DocumentTreeWalker {
+        private static final String[] CHILD_PROJECTION = {DocumentsContract.Document.COLUMN_DOCUMENT_ID, DocumentsContract.Document.COLUMN_DISPLAY_NAME, DocumentsContract.Document.COLUMN_MIME_TYPE, DocumentsContract.Document.COLUMN_SIZE, DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+
+        interface Visitor {
+            /**
+             * Called for each sub-directory before its children are listed.
+             *
+             * @return the local directory its children go to, or null to stop the walk
+             */
+            File onDirectory(DocumentRecord dir, File parentDir);
+
+            /**
+             * @return false to stop the walk
+             */
+            boolean onFile(DocumentRecord file, File parentDir);
+        }
+
+        static final class DocumentRecord {
+            final String documentId;
+            final String displayName;
+            final String mimeType;
+            // -1 if the provider does not know
+            final long size;
+            // milliseconds since the epoch, 0 if unknown
+            final long lastModified;
+
+            DocumentRecord(String documentId, String displayName, String mimeType, long size, long lastModified) {
+                this.documentId = documentId;
+                this.displayName = displayName;
+                this.mimeType = mimeType;
+                this.size = size;
+                this.lastModified = lastModified;
+            }
+
+            boolean isDirectory() {
+                return DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
+            }
+        }
+
+        private static final class PendingDirectory {
+            final String documentId;
+            final File destDir;
+            Future<List<DocumentRecord>> children;
+
+            PendingDirectory(String documentId, File destDir) {
+                this.documentId = documentId;
+                this.destDir = destDir;
+            }
+        }
+
+        private final ContentResolver resolver;
+        private final Uri treeUri;
+        private final ExecutorService queryExecutor;
+        private final int prefetch;
+        private final BooleanSupplier stopRequested;
+
+        DocumentTreeWalker(ContentResolver resolver, Uri treeUri, ExecutorService queryExecutor, int prefetch, BooleanSupplier stopRequested) {
+            this.resolver = resolver;
+            this.treeUri = treeUri;
+            this.queryExecutor = queryExecutor;
+            this.prefetch = Math.max(1, prefetch);
+            this.stopRequested = stopRequested;
+        }
+
+        /**
+         * Visits every document below {@code rootDocumentId}, level by level.
+         *
+         * @return true if the whole tree was visited without a failure or stop request
+         */
+        boolean walk(String rootDocumentId, File rootDestDir, Visitor visitor) throws InterruptedException {
+            // directories whose children query has been issued, in visiting order
+            final ArrayDeque<PendingDirectory> queried = new ArrayDeque<>();
+            // directories still waiting for a free prefetch slot, all of them after the queried ones
+            final ArrayDeque<PendingDirectory> waiting = new ArrayDeque<>();
+            waiting.add(new PendingDirectory(rootDocumentId, rootDestDir));
+            try {
+                while (!queried.isEmpty() || !waiting.isEmpty()) {
+                    while (queried.size() < prefetch && !waiting.isEmpty()) {
+                        final PendingDirectory dir = waiting.poll();
+                        dir.children = queryExecutor.submit(() -> queryChildren(dir.documentId));
+                        queried.add(dir);
+                    }
+                    if (stopRequested.getAsBoolean()) return false;
+                    final PendingDirectory dir = queried.poll();
+                    final List<DocumentRecord> children;
+                    try {
+                        children = dir.children.get();
+                    } catch (ExecutionException e) {
+                        return false;
+                    }
+                    if (children == null) return false;
+                    for (DocumentRecord child : children) {
+                        if (stopRequested.getAsBoolean()) return false;
+                        if (child.isDirectory()) {
+                            final File subDir = visitor.onDirectory(child, dir.destDir);
+                            if (subDir == null) return false;
+                            waiting.add(new PendingDirectory(child.documentId, subDir));
+                        } else if (!visitor.onFile(child, dir.destDir)) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            } finally {
+                for (PendingDirectory dir : queried) dir.children.cancel(false);
+            }
+        }
+
+        List<DocumentRecord> queryChildren(String documentId) {
+            final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
+            try (Cursor cursor = resolver.query(childrenUri, CHILD_PROJECTION, null, null, null)) {
+                if (cursor == null) return null;
+                final List<DocumentRecord> children = new ArrayList<>(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    children.add(new DocumentRecord(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.isNull(3) ? -1 : cursor.getLong(3), cursor.isNull(4) ? 0 : cursor.getLong(4)));
+                }
+                return children;
+            } catch (Exception e) {
+                return null;
             }
         }
-        if (result == null) result = "file_" + System.currentTimeMillis();
-        return result;
     }
 
-    private String getMimeType(String fileName) {
-        String type = null;
-        int dot = fileName.lastIndexOf('.');
-        String ext = dot >= 0 ? fileName.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
-        if (!ext.isEmpty()) {
-            type = MimeTypeMap.getSingleton().getMimeTypeFromExtension(ext);
+    /**
+     * The columns of a picked document that the transfer stages need, read with one narrow
+     * query.
+     */
+    static final class DocumentMetadata {
+        final String displayName;
+        // -1 if the provider does not know
+        final long size;
+        // milliseconds since the epoch, 0 if unknown
+        final long lastModified;
+
+        DocumentMetadata(String displayName, long size, long lastModified) {
+            this.displayName = displayName;
+            this.size = size;
+            this.lastModified = lastModified;
         }
-        return type != null ? type : "application/octet-stream";
     }
 
-    private int dp(int dp) {
-        return (int) (dp * getResources().getDisplayMetrics().density);
+    /**
+     * Per-job cache of {@link DocumentMetadata}: each URI costs at most one provider query for
+     * the lifetime of the job, however many stages (name clash check, progress total, copy,
+     * rollback) look at it.
+     */
+    static final class MetadataResolver {
+        private static final String[] DOCUMENT_PROJECTION = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE, DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+        // the only columns every openable URI must support
+        private static final String[] OPENABLE_PROJECTION = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+
+        private final ContentResolver resolver;
+        private final Map<Uri, DocumentMetadata> cache = new ConcurrentHashMap<>();
+
+        MetadataResolver(ContentResolver resolver) {
+            this.resolver = resolver;
+        }
+
+        DocumentMetadata resolve(Uri uri) {
+            DocumentMetadata metadata = cache.get(uri);
+            if (metadata == null) {
+                metadata = query(uri);
+                cache.put(uri, metadata);
+            }
+            return metadata;
+        }
+
+        private DocumentMetadata query(Uri uri) {
+            String name = null;
+            long size = -1;
+            long lastModified = 0;
+            Cursor cursor = null;
+            try {
+                try {
+                    cursor = resolver.query(uri, DOCUMENT_PROJECTION, null, null, null);
+                } catch (RuntimeException e) {
+                    // not a DocumentsProvider: providers reject unknown columns in their own ways,
+                    // MediaStore with an IllegalArgumentException, others with SQLite exceptions
+                    cursor = resolver.query(uri, OPENABLE_PROJECTION, null, null, null);
+                }
+                if (cursor != null && cursor.moveToFirst()) {
+                    // a provider may return its columns in any order, or leave some out
+                    final int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                    final int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    final int lastModifiedIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                    if (nameIndex >= 0) name = cursor.getString(nameIndex);
+                    if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) size = cursor.getLong(sizeIndex);
+                    if (lastModifiedIndex >= 0 && !cursor.isNull(lastModifiedIndex)) lastModified = cursor.getLong(lastModifiedIndex);
+                }
+            } catch (Exception e) {
+                //
+            } finally {
+                if (cursor != null) cursor.close();
+            }
+            if (name == null) name = "file_" + System.currentTimeMillis();
+            return new DocumentMetadata(name, size, lastModified);
+        }
     }
 
-    private void refreshFileList() {
-        fileList.clear();
-        File[] files = appDocumentsDir.listFiles();
-        if (files != null) fileList.addAll(Arrays.asList(files));
+    /**
+     * Checksums of verified transfers, keyed by the path of an imported file or by the document
+     * an export was written to. An entry is only reported while the local file still has the
+     * length and modification time it was recorded with.
+     */
+    static final class ChecksumStore {
+        private final File file;
+        private final Properties entries = new Properties();
+        private boolean dirty;
+
+        ChecksumStore(File file) {
+            this.file = file;
+        }
 
-        fileList.sort(new Comparator<>() {
-            public int compare(File f1, File f2) {
-                boolean d1 = f1.isDirectory();
-                boolean d2 = f2.isDirectory();
-                if (d1 != d2) return d1 ? -1 : 1;
-                return f1.getName().compareToIgnoreCase(f2.getName());
+        synchronized void load() {
+            try (InputStream is = new FileInputStream(file)) {
+                entries.load(is);
+            } catch (FileNotFoundException e) {
+                // nothing verified yet
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Failed to load checksums", e);
             }
-        });
+        }
+
+        synchronized void put(String path, long length, long lastModified, Checksum checksum) {
+            entries.setProperty(path, checksumAlgorithm() + ':' + Long.toHexString(checksum.getValue()) + ':' + length + ':' + lastModified);
+            dirty = true;
+        }
+
+        /**
+         * @return "algorithm:hex" of the file, or null if unknown or stale
+         */
+        synchronized String get(File local) {
+            return get(local.getPath(), local);
+        }
+
+        /**
+         * @param source the local file whose content was verified under {@code key}
+         * @return "algorithm:hex", or null if unknown or stale
+         */
+        synchronized String get(String key, File source) {
+            final String value = entries.getProperty(key);
+            if (value == null) return null;
+            final String[] parts = value.split(":");
+            if (parts.length != 4 || !parts[2].equals(Long.toString(source.length())) || !parts[3].equals(Long.toString(source.lastModified()))) return null;
+            return parts[0] + ':' + parts[1];
+        }
+
+        synchronized void save() {
+            if (!dirty) return;
+            final File tmp = new File(file.getPath() + ".tmp");
+            try (OutputStream os = new FileOutputStream(tmp)) {
+                entries.store(os, null);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save checksums", e);
+                return;
+            }
+            if (tmp.renameTo(file)) dirty = false;
+        }
+    }
+
+    /**
+     * State of one watched folder: its tree URI, the name of the folder it is imported into and
+     * the size and modification time of every file imported by the last scan, keyed by the path
+     * relative to that folder. The first line holds the folder, each further line one file.
+     */
+    static final class WatchState {
+        final File file;
+        final String treeUri;
+        final String name;
+
+        private WatchState(File file, String treeUri, String name) {
+            this.file = file;
+            this.treeUri = treeUri;
+            this.name = name;
+        }
+
+        static WatchState create(File dir, String treeUri, String name) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Failed to create " + dir);
+            final WatchState state = new WatchState(new File(dir, UUID.randomUUID() + ".state"), treeUri, name);
+            state.save(Collections.emptyMap());
+            return state;
+        }
+
+        static List<WatchState> loadAll(File dir) {
+            final List<WatchState> states = new ArrayList<>();
+            final File[] files = dir.listFiles((d, n) -> n.endsWith(".state"));
+            if (files == null) return states;
+            for (File file : files) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                    final JSONObject header = new JSONObject(reader.readLine());
+                    states.add(new WatchState(file, header.getString("tree"), header.getString("name")));
+                } catch (IOException | JSONException | NullPointerException e) {
+                    Log.w(TAG, "Skipping unreadable watch state " + file, e);
+                }
+            }
+            Collections.sort(states, (a, b) -> a.name.compareToIgnoreCase(b.name));
+            return states;
+        }
+
+        /**
+         * @return "size:lastModified", or null if the provider reports neither, in which case
+         * the file is imported on every scan
+         */
+        static String stamp(DocumentTreeWalker.DocumentRecord record) {
+            if (record.size < 0 || record.lastModified <= 0) return null;
+            return record.size + ":" + record.lastModified;
+        }
+
+        Map<String, String> load() {
+            final Map<String, String> entries = new HashMap<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                reader.readLine();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final JSONArray entry = new JSONArray(line);
+                    entries.put(entry.getString(0), entry.getString(1));
+                }
+            } catch (IOException | JSONException e) {
+                // whatever could not be read is imported again
+                Log.w(TAG, "Failed to read watch state " + file, e);
+            }
+            return entries;
+        }
+
+        void save(Map<String, String> entries) throws IOException {
+            final File tmp = new File(file.getPath() + ".tmp");
+            try (OutputStream os = new FileOutputStream(tmp)) {
+                final StringBuilder sb = new StringBuilder(new JSONObject().put("tree", treeUri).put("name", name).toString()).append('\n');
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    sb.append(new JSONArray().put(entry.getKey()).put(entry.getValue())).append('\n');
+                }
+                os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+            if (!tmp.renameTo(file)) throw new IOException("Failed to replace " + file);
+        }
+
+        void delete() {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Append-only journal of the running transfer job, kept in app-private storage so that a
+     * job interrupted by process death can be resumed. The first line describes the job, each
+     * further line records the progress of one file (keyed by its local path): the document
+     * created for it, the last committed byte offset, or completion. When loading, the last
+     * record of a file wins and a torn final line is ignored; the journal is then compacted.
+     */
+    static final class TransferJournal {
+        static final String IMPORT_FILES = "import_files";
+        static final String IMPORT_FOLDER = "import_folder";
+        static final String EXPORT_FILE = "export_file";
+        static final String EXPORT_FOLDER = "export_folder";
+
+        static final class Job {
+            final String type;
+            // content URIs for imports, local paths for exports
+            final List<String> sources;
+            // local paths for imports, the destination tree URI for exports
+            final List<String> destinations;
+            // the staging folder of an import, null for exports
+            final String staging;
+            // the name an export was given in the destination, null for imports
+            final String targetName;
+            // how name clashes were resolved when the job started
+            final ConflictPolicy conflictPolicy;
+            // URIs whose permissions are persisted while the job is alive
+            final List<String> grants;
+            final int grantFlags;
+
+            Job(String type, List<String> sources, List<String> destinations, String staging, String targetName, ConflictPolicy conflictPolicy, List<String> grants, int grantFlags) {
+                this.type = type;
+                this.sources = sources;
+                this.destinations = destinations;
+                this.staging = staging;
+                this.targetName = targetName;
+                this.conflictPolicy = conflictPolicy;
+                this.grants = grants;
+                this.grantFlags = grantFlags;
+            }
+
+            JSONObject toJson() throws JSONException {
+                final JSONObject json = new JSONObject().put("type", type).put("sources", new JSONArray(sources)).put("destinations", new JSONArray(destinations)).put("grants", new JSONArray(grants)).put("grantFlags", grantFlags);
+                if (staging != null) json.put("staging", staging);
+                if (targetName != null) json.put("targetName", targetName);
+                if (conflictPolicy != ConflictPolicy.STOP) json.put("conflictPolicy", conflictPolicy.name());
+                return json;
+            }
+
+            static Job fromJson(JSONObject json) throws JSONException {
+                return new Job(json.getString("type"), toList(json.getJSONArray("sources")), toList(json.getJSONArray("destinations")), json.has("staging") ? json.getString("staging") : null, json.has("targetName") ? json.getString("targetName") : null, ConflictPolicy.valueOf(json.optString("conflictPolicy", ConflictPolicy.STOP.name())), toList(json.getJSONArray("grants")), json.getInt("grantFlags"));
+            }
+
+            private static List<String> toList(JSONArray array) throws JSONException {
+                final List<String> list = new ArrayList<>(array.length());
+                for (int i = 0; i < array.length(); i++) list.add(array.getString(i));
+                return list;
+            }
+        }
+
+        static final class FileState {
+            final boolean done;
+            final long offset;
+            // the destination document of an export, null for imports
+            final String documentUri;
+            // true if the document existed before the job and is overwritten, not created by it
+            final boolean replaced;
+
+            FileState(boolean done, long offset, String documentUri, boolean replaced) {
+                this.done = done;
+                this.offset = offset;
+                this.documentUri = documentUri;
+                this.replaced = replaced;
+            }
+        }
+
+        final Job job;
+        // true if the journal was loaded from a previous process
+        final boolean resumed;
+        private final File file;
+        private final Map<String, FileState> states;
+        private OutputStream out;
+
+        private TransferJournal(File file, Job job, Map<String, FileState> states, boolean resumed) {
+            this.file = file;
+            this.job = job;
+            this.states = states;
+            this.resumed = resumed;
+        }
+
+        static TransferJournal create(File file, Job job) throws IOException {
+            final TransferJournal journal = new TransferJournal(file, job, new HashMap<>(), false);
+            journal.rewrite();
+            return journal;
+        }
+
+        /**
+         * @return the journal of an interrupted job, or null if there is none
+         */
+        static TransferJournal load(File file) {
+            if (!file.isFile()) return null;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                final String header = reader.readLine();
+                if (header == null) return null;
+                final Job job = Job.fromJson(new JSONObject(header));
+                final Map<String, FileState> states = new HashMap<>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final JSONObject record;
+                    try {
+                        record = new JSONObject(line);
+                    } catch (JSONException e) {
+                        break;
+                    }
+                    final String key = record.getString("k");
+                    final FileState previous = states.get(key);
+                    final String documentUri = record.has("u") ? record.getString("u") : previous != null ? previous.documentUri : null;
+                    final boolean replaced = record.optBoolean("r") || previous != null && previous.replaced;
+                    states.put(key, new FileState(record.optBoolean("d"), record.optLong("o"), documentUri, replaced));
+                }
+                final TransferJournal journal = new TransferJournal(file, job, states, true);
+                journal.rewrite();
+                return journal;
+            } catch (IOException | JSONException | IllegalArgumentException e) {
+                Log.w(TAG, "Discarding unreadable transfer journal", e);
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                return null;
+            }
+        }
+
+        synchronized FileState get(String key) {
+            return states.get(key);
+        }
+
+        synchronized void record(String key, boolean done, long offset, String documentUri) {
+            record(key, done, offset, documentUri, false);
+        }
+
+        /**
+         * Records the state of one file. A null {@code documentUri} keeps the one recorded before,
+         * and a document once marked as {@code replaced} stays so.
+         */
+        synchronized void record(String key, boolean done, long offset, String documentUri, boolean replaced) {
+            final FileState previous = states.get(key);
+            final String uri = documentUri != null ? documentUri : previous != null ? previous.documentUri : null;
+            states.put(key, new FileState(done, offset, uri, replaced || previous != null && previous.replaced));
+            if (out == null) return;
+            try {
+                final JSONObject record = new JSONObject().put("k", key);
+                if (done) record.put("d", true);
+                if (offset > 0) record.put("o", offset);
+                if (documentUri != null) record.put("u", documentUri);
+                if (replaced) record.put("r", true);
+                out.write((record + "\n").getBytes(StandardCharsets.UTF_8));
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Failed to write the transfer journal", e);
+            }
+        }
+
+        synchronized void delete() {
+            close();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+
+        synchronized void close() {
+            if (out == null) return;
+            try {
+                out.close();
+            } catch (IOException e) {
+                //
+            }
+            out = null;
+        }
+
+        // writes the header and the current states to a new file, then swaps it in
+        private synchronized void rewrite() throws IOException {
+            close();
+            final File tmp = new File(file.getPath() + ".tmp");
+            try (OutputStream os = new FileOutputStream(tmp)) {
+                final StringBuilder sb = new StringBuilder(job.toJson().toString()).append('\n');
+                for (Map.Entry<String, FileState> entry : states.entrySet()) {
+                    final FileState state = entry.getValue();
+                    final JSONObject record = new JSONObject().put("k", entry.getKey());
+                    if (state.done) record.put("d", true);
+                    if (state.offset > 0) record.put("o", state.offset);
+                    if (state.documentUri != null) record.put("u", state.documentUri);
+                    if (state.replaced) record.put("r", true);
+                    sb.append(record).append('\n');
+                }
+                os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+            if (!tmp.renameTo(file)) throw new IOException("Failed to replace " + file);
+            out = new FileOutputStream(file, true);
+        }
+    }
+
+    /**
+     * Display names in the directories of an export destination, each listed with one query
+     * when it is first needed and then kept current as documents are created or deleted, so a
+     * collision check is a hash lookup instead of a children query.
+     */
+    static final class DestinationIndex {
+        private final Uri treeUri;
+        private final DocumentTreeWalker lister;
+        // parent document id -> display name -> document id
+        private final Map<String, Map<String, String>> directories = new ConcurrentHashMap<>();
+
+        DestinationIndex(Uri treeUri, DocumentTreeWalker lister) {
+            this.treeUri = treeUri;
+            this.lister = lister;
+        }
+
+        void seed(String parentId, Map<String, DocumentTreeWalker.DocumentRecord> children) {
+            final Map<String, String> names = new ConcurrentHashMap<>();
+            for (DocumentTreeWalker.DocumentRecord child : children.values()) names.put(child.displayName, child.documentId);
+            directories.put(parentId, names);
+        }
+
+        /**
+         * @return the document of that name in the directory, or null
+         */
+        Uri find(String parentId, String name) {
+            final String documentId = names(parentId).get(name);
+            return documentId != null ? DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId) : null;
+        }
+
+        void created(String parentId, String name, Uri documentUri, boolean isDirectory) {
+            final String documentId = DocumentsContract.getDocumentId(documentUri);
+            names(parentId).put(name, documentId);
+            // a new directory is known to be empty
+            if (isDirectory) directories.putIfAbsent(documentId, new ConcurrentHashMap<>());
+        }
+
+        void deleted(String parentId, String name) {
+            names(parentId).remove(name);
+        }
+
+        private Map<String, String> names(String parentId) {
+            return directories.computeIfAbsent(parentId, id -> {
+                final Map<String, String> names = new ConcurrentHashMap<>();
+                // a directory that can't be listed has no known names, createDocument still
+                // resolves clashes in it the provider's way
+                final List<DocumentTreeWalker.DocumentRecord> children = lister.queryChildren(id);
+                if (children != null) {
+                    for (DocumentTreeWalker.DocumentRecord child : children) names.put(child.displayName, child.documentId);
+                }
+                return names;
+            });
+        }
+    }
+
+    /**
+     * The work a folder sync has to do, collected before anything is transferred so that the
+     * progress is determinate.
+     */
+    static final class SyncPlan {
+        final List<TransferScheduler.Task> tasks = new ArrayList<>();
+        // the file transfers of new folders, added while the tasks run
+        final Queue<TransferScheduler.Task> followUps = new ConcurrentLinkedQueue<>();
+        final ScanResult transfer = new ScanResult();
+        int deletions;
+        int conflicts;
+    }
+
+    static final class ScanResult {
+        long bytes;
+        int files;
+
+        void add(long size) {
+            bytes += Math.max(0, size);
+            files++;
+        }
+
+        void add(ScanResult other) {
+            bytes += other.bytes;
+            files += other.files;
+        }
+    }
+
+    /**
+     * Byte-level progress of a transfer job, independent of how it is displayed. Copy loops
+     * only bump atomic counters; a single reader (e.g. a per-frame UI callback) calls
+     * {@link #sample(long)} to derive a smoothed throughput and the remaining time from them.
+     */
+    static final class TransferProgress {
+        private static final double RATE_SMOOTHING = 0.3;
+
+        private final AtomicLong bytesTransferred = new AtomicLong();
+        private final AtomicInteger filesTransferred = new AtomicInteger();
+        private volatile long totalBytes = -1;
+        private volatile int totalFiles = -1;
+
+        // sampling state, owned by the reader
+        private long sampleNanos;
+        private long sampleBytes;
+        private double bytesPerSecond;
+
+        void setTotal(long bytes, int files) {
+            totalBytes = bytes;
+            totalFiles = files;
+        }
+
+        // for a job whose files are found while it already runs
+        synchronized void addTotal(long size, int files) {
+            totalBytes = Math.max(0, totalBytes) + Math.max(0, size);
+            totalFiles = Math.max(0, totalFiles) + files;
+        }
+
+        void addBytes(long count) {
+            bytesTransferred.addAndGet(count);
+        }
 
-        if (adapter != null) adapter.notifyDataSetChanged();
+        void fileCompleted() {
+            filesTransferred.incrementAndGet();
+        }
+
+        boolean isDeterminate() {
+            return totalBytes > 0;
+        }
+
+        long getBytesTransferred() {
+            return bytesTransferred.get();
+        }
+
+        long getTotalBytes() {
+            return totalBytes;
+        }
+
+        int getFilesTransferred() {
+            return filesTransferred.get();
+        }
+
+        int getTotalFiles() {
+            return totalFiles;
+        }
+
+        int getPermille() {
+            final long total = totalBytes;
+            if (total <= 0) return 0;
+            return (int) Math.min(1000, bytesTransferred.get() * 1000 / total);
+        }
+
+        void sample(long nowNanos) {
+            final long bytes = bytesTransferred.get();
+            if (sampleNanos != 0 && nowNanos > sampleNanos) {
+                final double rate = (bytes - sampleBytes) * 1e9 / (nowNanos - sampleNanos);
+                bytesPerSecond = bytesPerSecond == 0 ? rate : bytesPerSecond + RATE_SMOOTHING * (rate - bytesPerSecond);
+            }
+            sampleNanos = nowNanos;
+            sampleBytes = bytes;
+        }
+
+        double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * @return the estimated seconds left, or -1 if unknown
+         */
+        long getRemainingSeconds() {
+            if (!isDeterminate() || bytesPerSecond <= 0) return -1;
+            return (long) (Math.max(0, totalBytes - bytesTransferred.get()) / bytesPerSecond);
+        }
+    }
+
+    /**
+     * What a job does with an item whose name already exists at the destination.
+     */
+    enum ConflictPolicy {
+        // ask the user, nothing has been transferred yet
+        STOP("Stop"),
+        SKIP("Skip existing"),
+        OVERWRITE("Overwrite"),
+        // transfer under the first free "name (n).ext"
+        KEEP_BOTH("Keep both"),
+        // skip what size and modification time show to be identical, overwrite the rest
+        SKIP_IF_IDENTICAL("Skip identical, overwrite others");
+
+        final String label;
+
+        ConflictPolicy(String label) {
+            this.label = label;
+        }
+
+        boolean keepsExisting(boolean identical) {
+            return this == SKIP || (this == SKIP_IF_IDENTICAL && identical);
+        }
+
+        boolean replacesExisting() {
+            return this == OVERWRITE || this == SKIP_IF_IDENTICAL;
+        }
+    }
+
+    /**
+     * Moves staged items to their final names and remembers every move, so that a publish that
+     * fails halfway can be undone. An item that replaces an existing one first moves that one
+     * into the staging folder, from where it is restored on rollback.
+     */
+    static final class StagedPublisher {
+        private final File backupDir;
+        // {from, to} of every rename, the last one first
+        private final ArrayDeque<File[]> moves = new ArrayDeque<>();
+
+        StagedPublisher(File staging) {
+            backupDir = new File(staging, ".replaced");
+        }
+
+        boolean publish(File staged, File destination, boolean replace) {
+            if (destination.exists()) {
+                // rename(2) would silently replace a file
+                if (!replace) return false;
+                if (!backupDir.isDirectory() && !backupDir.mkdirs()) return false;
+                if (!move(destination, new File(backupDir, Integer.toString(moves.size())))) return false;
+            }
+            return move(staged, destination);
+        }
+
+        /**
+         * Moves the content of a staged folder into an existing one, replacing the files that
+         * are there. Fails rather than replace a folder with a file or a file with a folder.
+         */
+        boolean merge(File stagedDir, File destDir) {
+            final File[] children = stagedDir.listFiles();
+            if (children == null) return false;
+            for (File child : children) {
+                final File destination = new File(destDir, child.getName());
+                if (destination.exists() && destination.isDirectory() != child.isDirectory()) return false;
+                final boolean published = child.isDirectory() && destination.isDirectory() ? merge(child, destination) : publish(child, destination, true);
+                if (!published) return false;
+            }
+            return true;
+        }
+
+        void rollback() {
+            while (!moves.isEmpty()) {
+                final File[] move = moves.pop();
+                //noinspection ResultOfMethodCallIgnored
+                move[1].renameTo(move[0]);
+            }
+        }
+
+        private boolean move(File from, File to) {
+            if (!from.renameTo(to)) return false;
+            moves.push(new File[]{from, to});
+            return true;
+        }
+    }
+
+    /**
+     * When copied files are flushed from the page cache to storage. Until they are, a power
+     * loss can lose files that were reported as copied.
+     */
+    enum Durability {
+        // left to the kernel's writeback
+        NONE,
+        // all files of a job are synced together at its end, before it is reported as done
+        GROUP_COMMIT,
+        // every file is synced as soon as it is written
+        STRICT
+    }
+
+    enum TransferPath {
+        ZERO_COPY, STREAM
+    }
+
+    /**
+     * Records which copy path (kernel-side zero-copy or buffered stream) each
+     * transferred file took, so the behavior of a provider can be confirmed from logcat.
+     */
+    static final class TransferReport {
+        private final AtomicInteger zeroCopyFiles = new AtomicInteger();
+        private final AtomicInteger streamedFiles = new AtomicInteger();
+        private final AtomicInteger skippedFiles = new AtomicInteger();
+        private final long startNanos = System.nanoTime();
+
+        void record(String name, TransferPath path) {
+            if (path == TransferPath.ZERO_COPY) {
+                zeroCopyFiles.incrementAndGet();
+            } else {
+                streamedFiles.incrementAndGet();
+            }
+            Log.d(TAG, "\"" + name + "\" -> " + path);
+        }
+
+        // kept by the job's conflict policy instead of being transferred
+        void skipped(String name) {
+            skippedFiles.incrementAndGet();
+            Log.d(TAG, "\"" + name + "\" -> skipped");
+        }
+
+        int fileCount() {
+            return zeroCopyFiles.get() + streamedFiles.get();
+        }
+
+        int skippedCount() {
+            return skippedFiles.get();
+        }
+
+        String summary() {
+            return zeroCopyFiles.get() + " zero-copy, " + streamedFiles.get() + " streamed, " + skippedFiles.get() + " skipped in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms";
+        }
+    }
+
+    /**
+     * Copy buffers shared by all transfers, so that copying many files doesn't allocate (and
+     * collect) a buffer per file. The budget covers every buffer, in use and idle: when a new
+     * one would exceed it, idle buffers are dropped first, then a smaller buffer is handed out,
+     * down to {@code MIN_BUFFER_SIZE}, below which a transfer is never starved. Buffers are
+     * direct where {@link Checksum} can read them (API 26), so channel I/O doesn't copy through
+     * the heap.
+     */
+    static final class BufferPool {
+        private final long budget;
+        private final Map<Integer, ArrayDeque<ByteBuffer>> idle = new HashMap<>();
+        private long idleBytes;
+        private long inUseBytes;
+        private long peakInUseBytes;
+        private long hits;
+        private long misses;
+
+        BufferPool(long budget) {
+            this.budget = budget;
+        }
+
+        /**
+         * @return a cleared buffer of {@code size} bytes, or fewer if the budget is used up, to be
+         * handed back with {@link #release(ByteBuffer)}
+         */
+        synchronized ByteBuffer acquire(int size) {
+            while (size > MIN_BUFFER_SIZE && inUseBytes + size > budget) size >>= 1;
+            final ArrayDeque<ByteBuffer> free = idle.get(size);
+            ByteBuffer buffer = free != null ? free.poll() : null;
+            if (buffer != null) {
+                hits++;
+                idleBytes -= size;
+            } else {
+                misses++;
+                dropIdle(inUseBytes + idleBytes + size - budget);
+                buffer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            }
+            inUseBytes += size;
+            peakInUseBytes = Math.max(peakInUseBytes, inUseBytes);
+            buffer.clear();
+            return buffer;
+        }
+
+        synchronized void release(ByteBuffer buffer) {
+            final int size = buffer.capacity();
+            inUseBytes -= size;
+            if (inUseBytes + idleBytes + size > budget) return;
+            ArrayDeque<ByteBuffer> free = idle.get(size);
+            if (free == null) {
+                free = new ArrayDeque<>();
+                idle.put(size, free);
+            }
+            free.push(buffer);
+            idleBytes += size;
+        }
+
+        synchronized void clear() {
+            idle.clear();
+            idleBytes = 0;
+        }
+
+        // leaves idle buffers of at least {@code bytes} to the garbage collector
+        private void dropIdle(long bytes) {
+            final Iterator<ArrayDeque<ByteBuffer>> it = idle.values().iterator();
+            while (bytes > 0 && it.hasNext()) {
+                final ArrayDeque<ByteBuffer> free = it.next();
+                while (bytes > 0 && !free.isEmpty()) {
+                    final int size = free.poll().capacity();
+                    idleBytes -= size;
+                    bytes -= size;
+                }
+                if (free.isEmpty()) it.remove();
+            }
+        }
+
+        synchronized String summary() {
+            return hits + " reused, " + misses + " allocated, peak " + peakInUseBytes / 1024 + " KiB in use, " + idleBytes / 1024 + " KiB idle";
+        }
+    }
+
+    /**
+     * Runs transfer tasks on a bounded thread pool. At most {@code concurrency} tasks run at
+     * once and at most {@code perProviderLimit} of them talk to the same content provider
+     * (URI authority); tasks of different providers are dispatched round-robin. Tasks are
+     * classified by size: small ones, dominated by per-file IPC, may use every lane, while
+     * large ones, dominated by bandwidth, are limited to {@code largeLanes} so they don't
+     * starve the small ones. Throughput is measured per class.
+     */
+    static final class TransferScheduler {
+        /** Marker a producer can hand to a {@link TaskSource} to signal the end of the input. */
+        static final Task END_OF_TASKS = new Task(null, 0, () -> true);
+        // how far the dispatcher may read ahead of the workers, in multiples of the concurrency,
+        // to find small tasks behind large ones that have to wait for a lane
+        private static final int LOOKAHEAD_FACTOR = 4;
+
+        interface TaskSource {
+            /**
+             * @return the next task, blocking until one is available, or null once there are no more
+             */
+            Task next() throws InterruptedException;
+        }
+
+        static final class Task {
+            final String provider;
+            // bytes transferred by the task, 0 for metadata-only work, -1 if unknown
+            final long size;
+            final Callable<Boolean> work;
+
+            Task(String provider, long size, Callable<Boolean> work) {
+                this.provider = provider != null ? provider : "";
+                this.size = size;
+                this.work = work;
+            }
+        }
+
+        /**
+         * Completed tasks, bytes and the time at least one task of a size class was running.
+         * Only touched by the dispatching thread.
+         */
+        static final class ClassMetrics {
+            private int running;
+            private long activeSince;
+            private long activeNanos;
+            private int files;
+            private long bytes;
+            private int peakRunning;
+
+            void started(long now) {
+                if (running++ == 0) activeSince = now;
+                peakRunning = Math.max(peakRunning, running);
+            }
+
+            void finished(long now, long size, boolean ok) {
+                if (--running == 0) activeNanos += now - activeSince;
+                if (!ok) return;
+                files++;
+                bytes += Math.max(0, size);
+            }
+
+            String summary(String name) {
+                final double seconds = activeNanos / 1e9;
+                final String rate = seconds > 0 ? String.format(Locale.ROOT, "%.1f MB/s", bytes / 1e6 / seconds) : "n/a";
+                return name + " " + files + " files, " + bytes + " bytes, " + rate + ", up to " + peakRunning + " concurrent";
+            }
+        }
+
+        private final ThreadPoolExecutor pool;
+        private final int concurrency;
+        private final int perProviderLimit;
+        private final int largeLanes;
+        private final long largeThreshold;
+        private ClassMetrics smallMetrics = new ClassMetrics();
+        private ClassMetrics largeMetrics = new ClassMetrics();
+
+        TransferScheduler(int concurrency, int perProviderLimit, int largeLanes, long largeThreshold) {
+            this.concurrency = Math.max(1, concurrency);
+            this.perProviderLimit = Math.max(1, perProviderLimit);
+            this.largeLanes = Math.max(1, Math.min(largeLanes, this.concurrency));
+            this.largeThreshold = largeThreshold;
+            pool = new ThreadPoolExecutor(this.concurrency, this.concurrency, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            pool.allowCoreThreadTimeOut(true);
+        }
+
+        // unknown sizes count as large, a stream of unknown length may be anything
+        boolean isLarge(Task task) {
+            return task.size < 0 || task.size >= largeThreshold;
+        }
+
+        synchronized void resetMetrics() {
+            smallMetrics = new ClassMetrics();
+            largeMetrics = new ClassMetrics();
+        }
+
+        synchronized String metricsSummary() {
+            return smallMetrics.summary("small:") + "; " + largeMetrics.summary("large:");
+        }
+
+        /**
+         * Runs all tasks and returns true only if every one of them returned true. Dispatching
+         * stops at the first failed task or once {@code stopRequested} is set; the call returns
+         * after all dispatched tasks have finished, so the caller can safely roll back.
+         */
+        boolean runAll(List<Task> tasks, BooleanSupplier stopRequested) throws InterruptedException {
+            final Iterator<Task> iterator = tasks.iterator();
+            return run(() -> iterator.hasNext() ? iterator.next() : null, stopRequested);
+        }
+
+        /**
+         * Same as {@link #runAll(List, BooleanSupplier)} for tasks that are still being produced,
+         * e.g. by a crawler. Only a few tasks are pulled from {@code source} ahead of the
+         * workers, so a bounded producer queue provides back-pressure.
+         */
+        boolean run(TaskSource source, BooleanSupplier stopRequested) throws InterruptedException {
+            // per provider, in round-robin order
+            final Map<String, ArrayDeque<Task>> pendingSmall = new LinkedHashMap<>();
+            final Map<String, ArrayDeque<Task>> pendingLarge = new LinkedHashMap<>();
+            final Map<String, Integer> inFlight = new HashMap<>();
+            final Map<Future<Boolean>, Task> running = new HashMap<>();
+            final CompletionService<Boolean> completion = new ExecutorCompletionService<>(pool);
+            int pendingCount = 0;
+            int pendingSmallCount = 0;
+            int runningLarge = 0;
+            boolean exhausted = false;
+            boolean ok = true;
+            while (true) {
+                if (ok && !stopRequested.getAsBoolean()) {
+                    while (running.size() < concurrency) {
+                        // large files first, so they are streaming while small ones fill the other lanes
+                        Task task = runningLarge < largeLanes ? poll(pendingLarge, inFlight) : null;
+                        if (task == null) {
+                            task = poll(pendingSmall, inFlight);
+                            if (task == null) break;
+                            pendingSmallCount--;
+                        } else {
+                            runningLarge++;
+                        }
+                        pendingCount--;
+                        running.put(completion.submit(task.work), task);
+                        final Integer count = inFlight.get(task.provider);
+                        inFlight.put(task.provider, count != null ? count + 1 : 1);
+                        metrics(task).started(System.nanoTime());
+                    }
+                    if (!exhausted && running.size() < concurrency && pendingSmallCount < concurrency && pendingCount < concurrency * LOOKAHEAD_FACTOR) {
+                        final Task task = source.next();
+                        if (task == null) {
+                            exhausted = true;
+                        } else {
+                            final Map<String, ArrayDeque<Task>> pending = isLarge(task) ? pendingLarge : pendingSmall;
+                            ArrayDeque<Task> queue = pending.get(task.provider);
+                            if (queue == null) {
+                                queue = new ArrayDeque<>();
+                                pending.put(task.provider, queue);
+                            }
+                            queue.add(task);
+                            pendingCount++;
+                            if (!isLarge(task)) pendingSmallCount++;
+                        }
+                        continue;
+                    }
+                }
+                if (running.isEmpty()) break;
+                final Future<Boolean> done = completion.take();
+                final Task task = running.remove(done);
+                final Integer count = inFlight.get(task.provider);
+                inFlight.put(task.provider, count != null ? count - 1 : 0);
+                if (isLarge(task)) runningLarge--;
+                boolean succeeded;
+                try {
+                    succeeded = Boolean.TRUE.equals(done.get());
+                } catch (ExecutionException e) {
+                    succeeded = false;
+                }
+                metrics(task).finished(System.nanoTime(), task.size, succeeded);
+                if (!succeeded) ok = false;
+            }
+            return ok && exhausted && pendingCount == 0 && !stopRequested.getAsBoolean();
+        }
+
+        /**
+         * Takes the next task of the first provider that is below its limit and moves that
+         * provider to the end of the round.
+         */
+        private Task poll(Map<String, ArrayDeque<Task>> pending, Map<String, Integer> inFlight) {
+            for (Map.Entry<String, ArrayDeque<Task>> entry : pending.entrySet()) {
+                final Integer count = inFlight.get(entry.getKey());
+                if (count != null && count >= perProviderLimit) continue;
+                final ArrayDeque<Task> queue = entry.getValue();
+                final Task task = queue.poll();
+                pending.remove(entry.getKey());
+                if (!queue.isEmpty()) pending.put(task.provider, queue);
+                return task;
+            }
+            return null;
+        }
+
+        private synchronized ClassMetrics metrics(Task task) {
+            return isLarge(task) ? largeMetrics : smallMetrics;
+        }
+
+        void shutdownNow() {
+            pool.shutdownNow();
+        }
     }
 
     static class FileListAdapter extends RecyclerView.Adapter<FileListAdapter.VH> {
         interface OnClickListener {
-            void onClick(File file);
+            void onClick(FileEntry entry);
         }
 
-        private final List<File> files;
+        private static final DiffUtil.ItemCallback<FileEntry> DIFF_CALLBACK = new DiffUtil.ItemCallback<>() {
+            @Override
+            public boolean areItemsTheSame(@NonNull FileEntry oldItem, @NonNull FileEntry newItem) {
+                return oldItem.file.equals(newItem.file);
+            }
+
+            @Override
+            public boolean areContentsTheSame(@NonNull FileEntry oldItem, @NonNull FileEntry newItem) {
+                return oldItem.hasSameAttributes(newItem);
+            }
+        };
+
+        // diffs each submitted listing against the current one on a background thread
+        private final AsyncListDiffer<FileEntry> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
         private OnClickListener listener;
 
-        FileListAdapter(List<File> files) {
-            this.files = files;
+        FileListAdapter() {
+            setHasStableIds(true);
+        }
+
+        void submitList(List<FileEntry> entries) {
+            differ.submitList(entries);
         }
 
         public void setOnItemClickListener(OnClickListener listener) {
@@ -749,25 +4004,30 @@ public class FileManagerActivity extends AppCompatActivity {
 
         @Override
         public void onBindViewHolder(@NonNull VH holder, int position) {
-            File file = files.get(position);
-            if (file.isDirectory()) {
+            FileEntry entry = differ.getCurrentList().get(position);
+            if (entry.isDirectory) {
                 holder.iconView.setText("\uD83D\uDCC2"); // 📂
                 holder.iconView.setTextColor(Color.parseColor("#1976D2"));
             } else {
                 holder.iconView.setText("\uD83D\uDCC3"); // 📃
                 holder.iconView.setTextColor(Color.parseColor("#616161"));
             }
-            holder.textView.setText(file.getName());
+            holder.textView.setText(entry.name);
             holder.itemView.setClickable(true);
             holder.itemView.setFocusable(true);
             holder.itemView.setOnClickListener(v -> {
-                if (listener != null) listener.onClick(file);
+                if (listener != null) listener.onClick(entry);
             });
         }
 
         @Override
         public int getItemCount() {
-            return files.size();
+            return differ.getCurrentList().size();
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return differ.getCurrentList().get(position).id;
         }
 
         static int dp(int dp) {